@@ -0,0 +1,124 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/** Minimal micro-benchmark harness. Each benchmark is run for a number of warm-up iterations,
+ * whose results are discarded, followed by measured iterations of fixed duration. The time per
+ * operation is reported as the mean and standard deviation over the measured iterations.
+ * Results of each operation are consumed so that the JIT compiler cannot eliminate the work.
+ *
+ * A benchmark can also be run by several threads at once. The time reported is then the
+ * wall-clock time divided by the operations completed by all threads, that is, the inverse of
+ * the throughput, so perfect scaling halves it each time the number of threads doubles.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+    private static final int MEASURED_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.millis", 1000);
+
+    private static volatile Object sink;
+    private static int hashSink;
+
+    /** Runs a benchmark and prints the time per operation on the standard output.
+     *
+     * @param name      Name of the benchmark, printed with the results.
+     * @param operation Operation to be measured. Its result is consumed by the harness.
+     * @return The mean time per operation, in nanoseconds.
+     */
+    public static double run(String name, Supplier<?> operation) {
+        return measure(name, () -> iteration(operation));
+    }
+
+    /** Runs a benchmark on several threads at once and prints the wall-clock time per
+     * operation, over all threads, on the standard output.
+     *
+     * @param name      Name of the benchmark, printed with the results.
+     * @param threads   Number of threads running the operation.
+     * @param operation Operation to be measured. It must be safe to call from several threads.
+     * @return The mean time per operation, in nanoseconds.
+     */
+    public static double runConcurrent(String name, int threads, Supplier<?> operation) {
+        return measure(name, () -> concurrentIteration(threads, operation));
+    }
+
+    /** Consumes a value so that the computation producing it is not optimized away.
+     *
+     * @param value Value to be consumed.
+     */
+    public static void consume(Object value) {
+        hashSink += System.identityHashCode(value);
+        if ((hashSink & 0xfffff) == 0)
+            sink = value;
+    }
+
+    private static double measure(String name, DoubleSupplier iteration) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iteration.getAsDouble();
+
+        double[] results = new double[MEASURED_ITERATIONS];
+        double sum = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = iteration.getAsDouble();
+            sum += results[i];
+        }
+        double mean = sum / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results)
+            variance += (result - mean) * (result - mean);
+        double deviation = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        System.out.printf("%-45s %12.1f ns/op  +- %8.1f\n", name, mean, deviation);
+        return mean;
+    }
+
+    private static double iteration(Supplier<?> operation) {
+        long operations = 0;
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1000000;
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < 64; i++)
+                consume(operation.get());
+            operations += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - start) / operations;
+    }
+
+    /** Runs one iteration on several threads. Each thread consumes results into a local hash,
+     * rather than the shared one, so the threads do not contend on the harness itself.
+     */
+    private static double concurrentIteration(int threads, Supplier<?> operation) {
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1000000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                int localSink = 0;
+                do {
+                    for (int i = 0; i < 64; i++)
+                        localSink += System.identityHashCode(operation.get());
+                    count += 64;
+                } while (System.nanoTime() < deadline);
+                operations.add(count);
+                if ((localSink & 0xfffff) == 0)
+                    sink = localSink;
+            }, "bench-worker-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return (double) (System.nanoTime() - start) / operations.sum();
+    }
+}
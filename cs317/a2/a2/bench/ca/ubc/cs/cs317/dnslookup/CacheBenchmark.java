@@ -0,0 +1,63 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Measures DNSCache.getCachedResults and DNSCache.addResult as the cache grows, and as the
+ * number of threads using it increases. The cache is filled up to each size in turn, with one
+ * A record per node, and at each size every operation is run with each number of threads:
+ *
+ *   get hit   looks up a random cached node
+ *   get miss  looks up a node that is not cached
+ *   add       replaces the record of a random node with one that expires later, as when a
+ *             response refreshes a cached answer
+ *
+ * Sizes and thread counts are given as comma-separated lists in the bench.cacheSizes and
+ * bench.threads properties. The cache limits are lifted so no node is evicted.
+ */
+public class CacheBenchmark {
+
+    private static final String SIZES = System.getProperty("bench.cacheSizes", "1000,100000,1000000");
+    private static final String THREADS = System.getProperty("bench.threads", "1,2,4,8");
+
+    public static void main(String[] args) {
+        DNSCache cache = DNSCache.getInstance();
+        cache.setLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+
+        int filled = 0;
+        for (String sizeText : SIZES.split(",")) {
+            int size = Integer.parseInt(sizeText.trim());
+            DNSNode[] nodes = new DNSNode[size];
+            for (int i = 0; i < size; i++) {
+                nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+                if (i >= filled)
+                    cache.addResult(record(nodes[i], i));
+            }
+            filled = Math.max(filled, size);
+            DNSNode missing = new DNSNode("missing.example.com", RecordType.A);
+
+            for (String threadText : THREADS.split(",")) {
+                int threads = Integer.parseInt(threadText.trim());
+                String suffix = String.format(", %d nodes, %d threads", size, threads);
+                BenchmarkRunner.runConcurrent("get hit" + suffix, threads, () -> {
+                    Set<ResourceRecord> results = cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(size)]);
+                    if (results.isEmpty()) throw new IllegalStateException("record missing from cache");
+                    return results;
+                });
+                BenchmarkRunner.runConcurrent("get miss" + suffix, threads, () -> cache.getCachedResults(missing));
+                BenchmarkRunner.runConcurrent("add" + suffix, threads, () -> {
+                    int i = ThreadLocalRandom.current().nextInt(size);
+                    ResourceRecord record = record(nodes[i], i);
+                    cache.addResult(record);
+                    return record;
+                });
+            }
+        }
+        System.out.printf("%d records, about %d MB\n", cache.getEntryCount(), cache.getByteCount() >> 20);
+    }
+
+    private static ResourceRecord record(DNSNode node, int i) {
+        return new ResourceRecord(node.getHostName(), RecordType.A, 3600,
+                new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+    }
+}
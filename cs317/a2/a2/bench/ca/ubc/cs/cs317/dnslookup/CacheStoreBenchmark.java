@@ -0,0 +1,101 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/** Compares the heap and off-heap record stores when holding a very large cache. The store is
+ * filled with records, and the benchmark reports the heap and direct memory used, the time
+ * spent in garbage collection while filling the store and while reading from it, and the
+ * duration of a full collection with the whole cache live.
+ *
+ * Each store should be measured in its own JVM, with the same heap settings:
+ *
+ *   make bench BENCH=CacheStoreBenchmark BENCH_FLAGS="-Xmx8g -XX:MaxDirectMemorySize=4g -Dbench.store=offheap"
+ *
+ * The system property bench.store selects the store (heap or offheap, default heap),
+ * bench.records the number of records (default 10000000), and bench.readSeconds the length
+ * of the read phase (default 10). Every node has an A record, and every fourth node also has
+ * a second one, so there are 0.8 nodes per record.
+ */
+public class CacheStoreBenchmark {
+
+    private static final String STORE = System.getProperty("bench.store", "heap");
+    private static final int RECORDS = Integer.getInteger("bench.records", 10000000);
+    private static final int READ_SECONDS = Integer.getInteger("bench.readSeconds", 10);
+
+    public static void main(String[] args) {
+        int nodes = (int) (RECORDS * 4L / 5);
+        RecordStore store = STORE.equalsIgnoreCase("offheap")
+                ? new OffHeapRecordStore(Long.MAX_VALUE, Long.MAX_VALUE, 0)
+                : new HeapRecordStore(Long.MAX_VALUE, Long.MAX_VALUE, 0,
+                        DNSCache.createEvictionPolicy("tinylfu", nodes));
+
+        long gcTime = gcMillis();
+        long gcCount = gcCount();
+        long start = System.nanoTime();
+        for (int node = 0; node < nodes; node++) {
+            String hostName = hostName(node);
+            store.add(new ResourceRecord(hostName, RecordType.A, 86400, address(node, 1)));
+            if (node % 4 == 0)
+                store.add(new ResourceRecord(hostName, RecordType.A, 86400, address(node, 2)));
+        }
+        long fillMillis = (System.nanoTime() - start) / 1000000;
+        System.out.printf("%-45s %12s\n", "store", STORE);
+        System.out.printf("%-45s %,12d\n", "records", store.getEntryCount());
+        System.out.printf("%-45s %,12d ms\n", "fill time", fillMillis);
+        System.out.printf("%-45s %,12d ms in %d collections\n", "GC during fill", gcMillis() - gcTime, gcCount() - gcCount);
+
+        Random random = new Random(42);
+        gcTime = gcMillis();
+        gcCount = gcCount();
+        long reads = 0;
+        long deadline = System.nanoTime() + READ_SECONDS * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++)
+                BenchmarkRunner.consume(store.get(new DNSNode(hostName(random.nextInt(nodes)), RecordType.A)));
+            reads += 1000;
+        }
+        System.out.printf("%-45s %,12d reads/s\n", "read throughput", reads / READ_SECONDS);
+        System.out.printf("%-45s %,12d ms in %d collections\n", "GC during reads", gcMillis() - gcTime, gcCount() - gcCount);
+
+        start = System.nanoTime();
+        System.gc();
+        System.out.printf("%-45s %,12d ms\n", "full GC with cache live", (System.nanoTime() - start) / 1000000);
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%-45s %,12d MB\n", "heap used", (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        System.out.printf("%-45s %,12d MB\n", "direct memory used", directMemory() >> 20);
+        BenchmarkRunner.consume(store);
+        store.close();
+    }
+
+    private static String hostName(int node) {
+        return "host" + node + ".example.com";
+    }
+
+    private static byte[] address(int node, int host) {
+        return new byte[]{10, (byte) (node >>> 16), (byte) (node >>> 8), (byte) host};
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, collector.getCollectionTime());
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, collector.getCollectionCount());
+        return total;
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+            if (pool.getName().equals("direct"))
+                return pool.getMemoryUsed();
+        return 0;
+    }
+}
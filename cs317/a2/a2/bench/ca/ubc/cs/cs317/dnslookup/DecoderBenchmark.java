@@ -0,0 +1,58 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Compares the ByteBuffer response decoder with the original stream-based parser, on a
+ * referral with glue and on a CNAME chain answer. Both packets use name compression.
+ */
+public class DecoderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        byte[] referral = SamplePackets.referral();
+        byte[] answer = SamplePackets.answer();
+        ByteBuffer referralBuffer = ByteBuffer.wrap(referral);
+        ByteBuffer answerBuffer = ByteBuffer.wrap(answer);
+
+        check(referralBuffer, referral);
+        check(answerBuffer, answer);
+
+        BenchmarkRunner.run("decode referral (legacy streams)", () -> {
+            try {
+                return LegacyResponseDecoder.readDNSResponse(referral);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        BenchmarkRunner.run("decode referral (ByteBuffer)", () -> {
+            try {
+                return DNSResponseDecoder.decode(referralBuffer);
+            } catch (DNSException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        BenchmarkRunner.run("decode answer (legacy streams)", () -> {
+            try {
+                return LegacyResponseDecoder.readDNSResponse(answer);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        BenchmarkRunner.run("decode answer (ByteBuffer)", () -> {
+            try {
+                return DNSResponseDecoder.decode(answerBuffer);
+            } catch (DNSException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /** Makes sure both decoders agree before measuring them. */
+    private static void check(ByteBuffer buffer, byte[] packet) throws Exception {
+        DNSResponse expected = LegacyResponseDecoder.readDNSResponse(packet);
+        DNSResponse actual = DNSResponseDecoder.decode(buffer);
+        if (!expected.getAnswerRecords().equals(actual.getAnswerRecords())
+                || !expected.getAuthorityRecords().equals(actual.getAuthorityRecords())
+                || !expected.getAdditionalRecords().equals(actual.getAdditionalRecords()))
+            throw new IllegalStateException("decoders disagree");
+    }
+}
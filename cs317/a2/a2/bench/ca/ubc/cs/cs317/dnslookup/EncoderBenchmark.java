@@ -0,0 +1,44 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Measures query encoding: for a name whose wire format is cached, for names that are not
+ * cached and have to be encoded label by label, and without the EDNS OPT record.
+ */
+public class EncoderBenchmark {
+
+    // Many times the size of the name cache, so that cycling through the names always misses
+    private static final int NAME_COUNT = 1 << 16;
+
+    public static void main(String[] args) {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSQueryEncoder.MAX_QUERY_LENGTH);
+        DNSNode cached = new DNSNode("www.example.com", RecordType.A);
+
+        encode(cached, 0, DNSQueryEncoder.DEFAULT_UDP_PAYLOAD_SIZE, buffer);
+        DNSNode[] uncached = new DNSNode[NAME_COUNT];
+        for (int i = 0; i < NAME_COUNT; i++)
+            uncached[i] = new DNSNode("a1.edge" + i + ".cdn.example.com", RecordType.AAAA);
+        int[] next = new int[1];
+
+        BenchmarkRunner.run("encode query (cached name)", () -> {
+            encode(cached, 0x1234, DNSQueryEncoder.DEFAULT_UDP_PAYLOAD_SIZE, buffer);
+            return buffer;
+        });
+        BenchmarkRunner.run("encode query (uncached name)", () -> {
+            encode(uncached[next[0]++ & (NAME_COUNT - 1)], 0x1234, DNSQueryEncoder.DEFAULT_UDP_PAYLOAD_SIZE, buffer);
+            return buffer;
+        });
+        BenchmarkRunner.run("encode query (cached name, no EDNS)", () -> {
+            encode(cached, 0x1234, 0, buffer);
+            return buffer;
+        });
+    }
+
+    private static void encode(DNSNode node, int queryID, int payloadSize, ByteBuffer buffer) {
+        try {
+            DNSQueryEncoder.encode(node, queryID, payloadSize, buffer.clear());
+        } catch (DNSException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
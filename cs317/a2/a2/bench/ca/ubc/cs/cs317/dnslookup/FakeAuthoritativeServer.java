@@ -0,0 +1,204 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An in-process stand-in for a small DNS hierarchy, for benchmarks. Three servers listen on
+ * the same UDP and TCP port on different loopback addresses:
+ *
+ *   127.0.0.1  root: refers every name to the "com" servers, with glue
+ *   127.0.0.2  com: refers names under example.com to ns1.example.com, with glue, and names
+ *              under glueless.com to ns1.example.com, without glue
+ *   127.0.0.3  example.com: answers authoritatively. Names starting with "alias." are CNAMEs
+ *              for www.example.com, names starting with "nx." do not exist, names starting
+ *              with "nodata." have no records, both with an SOA giving a negative TTL of
+ *              300 seconds, names starting with "big." have enough A records to need EDNS
+ *              with a payload size of 4096 or TCP, and every other name has one A record
+ *              derived from its hash.
+ *
+ * Responses that do not fit in the UDP payload size advertised by the query, or in 512 bytes
+ * if it has no OPT record, are replaced by an empty response with the TC bit set.
+ *
+ * Every query received is counted, so benchmarks can report upstream traffic.
+ */
+public class FakeAuthoritativeServer implements Closeable {
+
+    public static final InetAddress ROOT = address(1);
+
+    private static final int BIG_RECORD_COUNT = 100;
+
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private final AtomicLong queries = new AtomicLong();
+    private final long latencyMillis;
+
+    /** Starts the three servers.
+     *
+     * @param port          Port the servers listen on.
+     * @param latencyMillis Time each server waits before answering, to simulate network delay.
+     * @throws IOException If a server cannot bind its address.
+     */
+    public FakeAuthoritativeServer(int port, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        for (int level = 1; level <= 3; level++) {
+            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(address(level), port));
+            sockets.add(socket);
+            int serverLevel = level;
+            Thread thread = new Thread(() -> serve(socket, serverLevel), "fake-authoritative-" + level);
+            thread.setDaemon(true);
+            thread.start();
+
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(address(level), port));
+            serverSockets.add(serverSocket);
+            Thread acceptor = new Thread(() -> accept(serverSocket, serverLevel), "fake-authoritative-tcp-" + level);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    /** @return The number of queries received by all three servers so far. */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    private void serve(DatagramSocket socket, int level) {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queries.incrementAndGet();
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                ByteBuffer request = ByteBuffer.wrap(buffer, 0, packet.getLength());
+                byte[] response = respond(level, request.getShort(0) & 0xffff, DNSResponseDecoder.decodeQuestion(request),
+                        udpPayloadSize(request));
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (Exception e) {
+                if (socket.isClosed()) return;
+            }
+        }
+    }
+
+    private void accept(ServerSocket serverSocket, int level) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket connection = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(connection, level), "fake-authoritative-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) return;
+            }
+        }
+    }
+
+    private void serve(Socket connection, int level) {
+        try (connection) {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                byte[] buffer = new byte[in.readUnsignedShort()];
+                in.readFully(buffer);
+                queries.incrementAndGet();
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                ByteBuffer request = ByteBuffer.wrap(buffer);
+                byte[] response = respond(level, request.getShort(0) & 0xffff, DNSResponseDecoder.decodeQuestion(request),
+                        65535);
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (Exception e) {
+            // Client closed the connection.
+        }
+    }
+
+    /** Returns the payload size advertised by a query, assuming that its only additional record,
+     * if any, is an OPT record at the end of the packet.
+     */
+    private static int udpPayloadSize(ByteBuffer request) {
+        if ((request.getShort(10) & 0xffff) == 0)
+            return 512;
+        return Math.max(512, request.getShort(request.limit() - 8) & 0xffff);
+    }
+
+    private static byte[] respond(int level, int queryID, DNSNode question, int maxLength) {
+        String name = question.getHostName();
+        SamplePackets packet = new SamplePackets();
+        if (level == 1) {
+            packet.header(queryID, 0x8000, 1, 0, 1, 1);
+            packet.question(name, question.getType());
+            packet.record("com", RecordType.NS, 172800, "a.gtld-servers.test");
+            packet.address("a.gtld-servers.test", RecordType.A, 172800, address(2).getAddress());
+        } else if (level == 2 && name.endsWith("glueless.com")) {
+            packet.header(queryID, 0x8000, 1, 0, 1, 0);
+            packet.question(name, question.getType());
+            packet.record("glueless.com", RecordType.NS, 172800, "ns1.example.com");
+        } else if (level == 2) {
+            packet.header(queryID, 0x8000, 1, 0, 1, 1);
+            packet.question(name, question.getType());
+            packet.record("example.com", RecordType.NS, 172800, "ns1.example.com");
+            packet.address("ns1.example.com", RecordType.A, 172800, address(3).getAddress());
+        } else if (name.startsWith("nx.") || name.startsWith("nodata.")) {
+            packet.header(queryID, name.startsWith("nx.") ? 0x8403 : 0x8400, 1, 0, 1, 0);
+            packet.question(name, question.getType());
+            packet.soa("example.com", 3600, "ns1.example.com", "hostmaster.example.com", 1, 300);
+        } else if (name.startsWith("big.")) {
+            packet.header(queryID, 0x8400, 1, BIG_RECORD_COUNT, 0, 0);
+            packet.question(name, question.getType());
+            for (int i = 0; i < BIG_RECORD_COUNT; i++)
+                packet.address(name, RecordType.A, 300, new byte[]{10, 0, 0, (byte) i});
+        } else if (name.startsWith("alias.")) {
+            packet.header(queryID, 0x8400, 1, 1, 0, 0);
+            packet.question(name, question.getType());
+            packet.record(name, RecordType.CNAME, 300, "www.example.com");
+        } else {
+            int hash = name.hashCode();
+            packet.header(queryID, 0x8400, 1, 1, 0, 0);
+            packet.question(name, question.getType());
+            packet.address(name, RecordType.A, 300, new byte[]{10, (byte) (hash >> 16), (byte) (hash >> 8), (byte) hash});
+        }
+        byte[] response = packet.toByteArray();
+        if (response.length <= maxLength)
+            return response;
+        SamplePackets truncated = new SamplePackets();
+        truncated.header(queryID, (response[2] & 0xff) << 8 | 0x0200 | (response[3] & 0xff), 1, 0, 0, 0);
+        truncated.question(name, question.getType());
+        return truncated.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        sockets.forEach(DatagramSocket::close);
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    private static InetAddress address(int level) {
+        try {
+            return InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) level});
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
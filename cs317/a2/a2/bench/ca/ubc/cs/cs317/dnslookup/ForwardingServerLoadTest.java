@@ -0,0 +1,94 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Load generator for the forwarding server mode. Starts a stand-in authoritative hierarchy and
+ * a forwarding server backed by it, warms the cache with a set of names, and then has a number
+ * of client threads send queries for those names as fast as the server answers them, keeping
+ * a window of queries outstanding per client. Reports the sustained queries per second.
+ *
+ * Usage: ForwardingServerLoadTest [clients] [seconds] [names] [window]
+ */
+public class ForwardingServerLoadTest {
+
+    private static final int UPSTREAM_PORT = Integer.getInteger("bench.upstreamPort", 5300);
+    private static final int LISTEN_PORT = Integer.getInteger("bench.listenPort", 5353);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int nameCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        FakeAuthoritativeServer upstream = new FakeAuthoritativeServer(UPSTREAM_PORT, 0);
+        Resolver resolver = new Resolver(FakeAuthoritativeServer.ROOT, UPSTREAM_PORT, DNSCache.getInstance());
+        DNSForwardingServer server = new DNSForwardingServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), LISTEN_PORT),
+                Runtime.getRuntime().availableProcessors(), ClientAccessList.getDefault(), resolver);
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < nameCount; i++)
+            names.add("host" + i + ".example.com");
+        resolver.resolveBatch(names, RecordType.A, 64, (node, results) -> { });
+        System.out.printf("Warmed %d names with %d upstream queries\n", nameCount, upstream.getQueryCount());
+
+        AtomicLong answered = new AtomicLong();
+        AtomicLong lost = new AtomicLong();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> runClient(client, names, window, deadline, answered, lost));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        System.out.printf("%d clients, window %d: %.0f queries/s (%d lost), %d upstream queries in total\n",
+                clients, window, answered.get() / (double) seconds, lost.get(), upstream.getQueryCount());
+        server.close();
+        resolver.close();
+        upstream.close();
+        System.exit(0);
+    }
+
+    private static void runClient(int client, List<String> names, int window, long deadline,
+                                  AtomicLong answered, AtomicLong lost) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(1000);
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), LISTEN_PORT);
+            ByteBuffer query = ByteBuffer.allocate(DNSQueryEncoder.MAX_QUERY_LENGTH);
+            byte[] response = new byte[512];
+            DatagramPacket received = new DatagramPacket(response, response.length);
+            int next = client;
+            while (System.currentTimeMillis() < deadline) {
+                for (int i = 0; i < window; i++) {
+                    query.clear();
+                    DNSQueryEncoder.encode(new DNSNode(names.get(next++ % names.size()), RecordType.A), i,
+                            DNSQueryEncoder.DEFAULT_UDP_PAYLOAD_SIZE, query);
+                    socket.send(new DatagramPacket(query.array(), query.position(), server));
+                }
+                for (int i = 0; i < window; i++) {
+                    try {
+                        socket.receive(received);
+                        answered.incrementAndGet();
+                    } catch (SocketTimeoutException e) {
+                        lost.addAndGet(window - i);
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
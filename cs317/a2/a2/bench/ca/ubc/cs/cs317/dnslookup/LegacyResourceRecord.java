@@ -0,0 +1,41 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.Date;
+
+/** The original layout of ResourceRecord, kept for comparison in benchmarks. Every record has
+ * its own DNSNode and host name, a Date for its expiration time, and both the InetAddress and
+ * the textual form of its address.
+ */
+public class LegacyResourceRecord implements Serializable {
+
+    private DNSNode node;
+    private Date expirationTime;
+    private String textResult;
+    private InetAddress inetResult;
+
+    public LegacyResourceRecord(String hostName, RecordType type, long ttl, String result) {
+        this.node = new DNSNode(hostName, type);
+        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.textResult = result;
+        this.inetResult = null;
+    }
+
+    public LegacyResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(hostName, type, ttl, result.getHostAddress());
+        this.inetResult = result;
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public String getTextResult() {
+        return textResult;
+    }
+
+    public InetAddress getInetResult() {
+        return inetResult;
+    }
+}
@@ -0,0 +1,106 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/** The original stream-based response parser from DNSLookupService, kept as a baseline for
+ * the decoder benchmarks. Records are not added to the cache.
+ */
+public class LegacyResponseDecoder {
+
+    private static final int ASCII_PERIOD = 0x2e;
+
+    public static DNSResponse readDNSResponse(byte[] response) throws IOException {
+        DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(response));
+        // decode header
+        int queryID = inStream.readUnsignedShort();
+        short flags = inStream.readShort();
+        boolean authoritative = (flags & 0x400) != 0; // check AA bit for if authoritative response
+        short questions = inStream.readShort();
+        short answers = inStream.readShort();
+        short authorityRR = inStream.readShort();
+        short additionalRR = inStream.readShort();
+        int rCode = flags & 0b1111;
+
+        DNSResponse dnsResponse = new DNSResponse(queryID, authoritative, rCode);
+
+        for (int i = 0; i < questions; i++) {
+            readQuestion(inStream, response);
+        }
+        for (int i = 0; i < answers; i++) {
+            dnsResponse.addAnswerRecord(readResourceRecord(inStream, response));
+        }
+        for (int i = 0; i < authorityRR; i++) {
+            dnsResponse.addAuthorityRecord(readResourceRecord(inStream, response));
+        }
+        for (int i = 0; i < additionalRR; i++) {
+            dnsResponse.addAdditionalRecord(readResourceRecord(inStream, response));
+        }
+        return dnsResponse;
+    }
+
+    private static void readQuestion(DataInputStream inputStream, byte[] response) throws IOException {
+        readMessage(inputStream, response);
+        inputStream.readUnsignedShort();
+        inputStream.readUnsignedShort();
+    }
+
+    private static String readMessage(DataInputStream inputStream, byte[] response) throws IOException {
+        DataInputStream tempInputStream = inputStream;
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutPutStream = new DataOutputStream(byteArrayOutputStream);
+
+        while (true) {
+            int byteValue = tempInputStream.readUnsignedByte();
+            if (byteValue == 0) {
+                break;
+            }
+
+            if ((byteValue >> 6) == 0b11) { // first two bits are ones indicates pointer
+                int offset = ((byteValue & 0b111111) << 8) + tempInputStream.readUnsignedByte(); // next 14 bits is the offset
+                tempInputStream = new DataInputStream(
+                        new ByteArrayInputStream(Arrays.copyOfRange(response, offset, response.length)));
+            } else {
+                while (byteValue-- > 0) {
+                    dataOutPutStream.writeByte(tempInputStream.readUnsignedByte());
+                }
+                dataOutPutStream.writeByte(ASCII_PERIOD);
+            }
+        }
+
+        String domain = byteArrayOutputStream.toString();
+        if (domain.length() > 0) {
+            domain = domain.substring(0, domain.length() - 1); // remove extra period added at the end
+        }
+        return domain;
+    }
+
+    private static ResourceRecord readResourceRecord(DataInputStream inputStream, byte[] response) throws IOException {
+        ResourceRecord resourceRecord;
+
+        String domain = readMessage(inputStream, response);
+        int typeField = inputStream.readShort();
+        int classField = inputStream.readShort();
+        int ttl = inputStream.readInt();
+        int rdLength = inputStream.readShort();
+
+        if (typeField == RecordType.A.getCode() || typeField == RecordType.AAAA.getCode()) {
+            byte[] addr = new byte[rdLength];
+            for (int i = 0; i < rdLength; i++) {
+                addr[i] = inputStream.readByte();
+            }
+            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, InetAddress.getByAddress(addr));
+        } else if (typeField == RecordType.SOA.getCode()) {
+            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, "----");
+        } else {
+            String result = readMessage(inputStream, response);
+            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, result);
+        }
+        return resourceRecord;
+    }
+}
@@ -0,0 +1,103 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Compares the heap used by cached records in the compact ResourceRecord layout and in the
+ * original layout (LegacyResourceRecord). Records are created the way the decoder creates
+ * them, each with its own copy of the host name; compact records then share one node per
+ * name, as they do once they are added to the cache.
+ *
+ * The mix of records is set with the system properties bench.records (total number of
+ * records, default 1000000) and bench.recordsPerNode (default 4): each node gets one NS
+ * record and the rest are A records, with one AAAA record in every fourth node.
+ */
+public class RecordFootprintBenchmark {
+
+    private static final int RECORDS = Integer.getInteger("bench.records", 1000000);
+    private static final int RECORDS_PER_NODE = Integer.getInteger("bench.recordsPerNode", 4);
+
+    public static void main(String[] args) throws UnknownHostException {
+        long baseline = usedHeap();
+        Object[] legacy = createLegacy();
+        long legacyBytes = usedHeap() - baseline;
+        BenchmarkRunner.consume(legacy);
+        legacy = null;
+
+        baseline = usedHeap();
+        Object[] compact = createCompact();
+        long compactBytes = usedHeap() - baseline;
+        BenchmarkRunner.consume(compact);
+
+        System.out.printf("%-45s %12.1f bytes/record\n", "legacy ResourceRecord", (double) legacyBytes / RECORDS);
+        System.out.printf("%-45s %12.1f bytes/record\n", "compact ResourceRecord", (double) compactBytes / RECORDS);
+        System.out.printf("%-45s %12.1f %%\n", "reduction", 100.0 * (legacyBytes - compactBytes) / legacyBytes);
+    }
+
+    private static Object[] createLegacy() throws UnknownHostException {
+        Object[] records = new Object[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            int node = i / RECORDS_PER_NODE;
+            String hostName = hostName(node);
+            int kind = i % RECORDS_PER_NODE;
+            if (kind == 0)
+                records[i] = new LegacyResourceRecord(hostName, RecordType.NS, 3600, nameServer(node));
+            else if (kind == 1 && node % 4 == 0)
+                records[i] = new LegacyResourceRecord(hostName, RecordType.AAAA, 3600,
+                        InetAddress.getByAddress(address(i, 16)));
+            else
+                records[i] = new LegacyResourceRecord(hostName, RecordType.A, 3600,
+                        InetAddress.getByAddress(address(i, 4)));
+        }
+        return records;
+    }
+
+    private static Object[] createCompact() {
+        Object[] records = new Object[RECORDS];
+        Map<DNSNode, DNSNode> nodes = new HashMap<>();
+        for (int i = 0; i < RECORDS; i++) {
+            int node = i / RECORDS_PER_NODE;
+            String hostName = hostName(node);
+            int kind = i % RECORDS_PER_NODE;
+            ResourceRecord record;
+            if (kind == 0)
+                record = new ResourceRecord(hostName, RecordType.NS, 3600, nameServer(node));
+            else if (kind == 1 && node % 4 == 0)
+                record = new ResourceRecord(hostName, RecordType.AAAA, 3600, address(i, 16));
+            else
+                record = new ResourceRecord(hostName, RecordType.A, 3600, address(i, 4));
+            // Stand-in for the node shared by a CachedRecordSet
+            record.shareNode(nodes.computeIfAbsent(record.getNode(), key -> key));
+            records[i] = record;
+        }
+        return records;
+    }
+
+    private static String hostName(int node) {
+        return "host" + node + ".example.com";
+    }
+
+    private static String nameServer(int node) {
+        return "ns" + (node % 8) + ".example.com";
+    }
+
+    private static byte[] address(int i, int length) {
+        byte[] address = new byte[length];
+        for (int j = 0; j < 4; j++)
+            address[length - 1 - j] = (byte) (i >>> (8 * j));
+        address[0] = (byte) (length == 4 ? 10 : 0x20);
+        return address;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
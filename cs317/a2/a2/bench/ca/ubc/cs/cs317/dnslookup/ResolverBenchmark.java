@@ -0,0 +1,63 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures end-to-end lookups through Resolver.getResults, against the in-process
+ * stand-in hierarchy of FakeAuthoritativeServer, over loopback:
+ *
+ *   cached answer        a name that is already cached, so no query is sent
+ *   cached NXDOMAIN      a name known not to exist, so no query is sent
+ *   new name             a name never looked up before, under a zone whose servers are cached,
+ *                        so one query is sent to the example.com server
+ *   new CNAME            a new alias of a cached name: one query for the alias
+ *
+ * New names are also resolved by several threads at once, with the thread counts given as a
+ * comma-separated list in the bench.threads property. Each operation looks up a different name,
+ * so the cache keeps growing during the benchmark.
+ */
+public class ResolverBenchmark {
+
+    private static final int UPSTREAM_PORT = Integer.getInteger("bench.upstreamPort", 5300);
+    private static final String THREADS = System.getProperty("bench.threads", "1,2,4,8");
+
+    public static void main(String[] args) throws Exception {
+        FakeAuthoritativeServer upstream = new FakeAuthoritativeServer(UPSTREAM_PORT, 0);
+        Resolver resolver = new Resolver(FakeAuthoritativeServer.ROOT, UPSTREAM_PORT, DNSCache.getInstance());
+
+        DNSNode cached = new DNSNode("www.example.com", RecordType.A);
+        DNSNode nonexistent = new DNSNode("nx.example.com", RecordType.A);
+        if (lookup(resolver, cached).isEmpty() || !lookup(resolver, nonexistent).isEmpty())
+            throw new IllegalStateException("unexpected answers from the fake servers");
+        AtomicLong next = new AtomicLong();
+
+        BenchmarkRunner.run("getResults cached answer", () -> lookup(resolver, cached));
+        BenchmarkRunner.run("getResults cached NXDOMAIN", () -> lookup(resolver, nonexistent));
+
+        long queries = upstream.getQueryCount();
+        long start = next.get();
+        BenchmarkRunner.run("getResults new name", () ->
+                lookup(resolver, new DNSNode("host" + next.getAndIncrement() + ".example.com", RecordType.A)));
+        System.out.printf("  %.2f upstream queries per new name\n",
+                (upstream.getQueryCount() - queries) / (double) (next.get() - start));
+        BenchmarkRunner.run("getResults new CNAME", () ->
+                lookup(resolver, new DNSNode("alias." + next.getAndIncrement() + ".example.com", RecordType.A)));
+
+        for (String threadText : THREADS.split(",")) {
+            int threads = Integer.parseInt(threadText.trim());
+            BenchmarkRunner.runConcurrent("getResults new name, " + threads + " threads", threads, () ->
+                    lookup(resolver, new DNSNode("host" + next.getAndIncrement() + ".example.com", RecordType.A)));
+        }
+
+        resolver.close();
+        upstream.close();
+        System.exit(0);
+    }
+
+    private static Set<ResourceRecord> lookup(Resolver resolver, DNSNode node) {
+        Set<ResourceRecord> results = resolver.getResults(node);
+        if (results.isEmpty() && !node.getHostName().startsWith("nx."))
+            throw new IllegalStateException("no answer for " + node.getHostName());
+        return results;
+    }
+}
@@ -0,0 +1,122 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Builds realistic DNS packets for benchmarks, using name compression the way authoritative
+ * servers do: every name suffix that was already written is replaced by a pointer to it.
+ */
+public class SamplePackets {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final Map<String, Integer> names = new HashMap<>();
+
+    /** A referral from a TLD server, as returned when resolving www.example.com: four NS records
+     * in the authority section, with A and AAAA glue for each of them.
+     *
+     * @return The response packet.
+     */
+    public static byte[] referral() {
+        SamplePackets packet = new SamplePackets();
+        packet.header(0x1234, 0x0000, 1, 0, 4, 8);
+        packet.question("www.example.com", RecordType.A);
+        for (int i = 0; i < 4; i++)
+            packet.record("example.com", RecordType.NS, 172800, "ns" + i + ".example.com");
+        for (int i = 0; i < 4; i++) {
+            packet.address("ns" + i + ".example.com", RecordType.A, 172800, new byte[]{10, 0, 0, (byte) i});
+            packet.address("ns" + i + ".example.com", RecordType.AAAA, 172800,
+                    new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) i});
+        }
+        return packet.toByteArray();
+    }
+
+    /** An authoritative answer with a CNAME chain followed by A records.
+     *
+     * @return The response packet.
+     */
+    public static byte[] answer() {
+        SamplePackets packet = new SamplePackets();
+        packet.header(0x4321, 0x8400, 1, 5, 0, 0);
+        packet.question("www.example.com", RecordType.A);
+        packet.record("www.example.com", RecordType.CNAME, 300, "edge.cdn.example.com");
+        packet.record("edge.cdn.example.com", RecordType.CNAME, 60, "a1.edge.cdn.example.com");
+        for (int i = 0; i < 3; i++)
+            packet.address("a1.edge.cdn.example.com", RecordType.A, 20, new byte[]{93, (byte) 184, (byte) 216, (byte) i});
+        return packet.toByteArray();
+    }
+
+    public void header(int queryID, int flags, int questions, int answers, int authority, int additional) {
+        buffer.putShort((short) queryID);
+        buffer.putShort((short) flags);
+        buffer.putShort((short) questions);
+        buffer.putShort((short) answers);
+        buffer.putShort((short) authority);
+        buffer.putShort((short) additional);
+    }
+
+    public void question(String name, RecordType type) {
+        name(name);
+        buffer.putShort((short) type.getCode());
+        buffer.putShort((short) 1);
+    }
+
+    public void record(String name, RecordType type, int ttl, String target) {
+        recordHeader(name, type, ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        name(target);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+    }
+
+    public void soa(String name, int ttl, String primary, String mailbox, int serial, int minimum) {
+        recordHeader(name, RecordType.SOA, ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        name(primary);
+        name(mailbox);
+        buffer.putInt(serial);
+        buffer.putInt(7200); // REFRESH
+        buffer.putInt(3600); // RETRY
+        buffer.putInt(1209600); // EXPIRE
+        buffer.putInt(minimum);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+    }
+
+    public void address(String name, RecordType type, int ttl, byte[] address) {
+        recordHeader(name, type, ttl);
+        buffer.putShort((short) address.length);
+        buffer.put(address);
+    }
+
+    public byte[] toByteArray() {
+        byte[] packet = new byte[buffer.position()];
+        buffer.get(0, packet);
+        return packet;
+    }
+
+    private void recordHeader(String name, RecordType type, int ttl) {
+        name(name);
+        buffer.putShort((short) type.getCode());
+        buffer.putShort((short) 1);
+        buffer.putInt(ttl);
+    }
+
+    private void name(String name) {
+        while (!name.isEmpty()) {
+            Integer pointer = names.get(name);
+            if (pointer != null) {
+                buffer.putShort((short) (0xc000 | pointer));
+                return;
+            }
+            names.put(name, buffer.position());
+            int period = name.indexOf('.');
+            String label = period < 0 ? name : name.substring(0, period);
+            buffer.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++)
+                buffer.put((byte) label.charAt(i));
+            name = period < 0 ? "" : name.substring(period + 1);
+        }
+        buffer.put((byte) 0);
+    }
+}
@@ -0,0 +1,218 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Saves the contents of the DNS cache to a file and restores them, so that a restarted
+ * resolver does not have to start every lookup from the root servers again.
+ *
+ * The snapshot is a compact binary file written through a FileChannel, and read back by
+ * mapping it into memory. It starts with a header (magic number, format version, time saved
+ * and number of records), followed by one entry per record:
+ *
+ *   expiration time   8 bytes, milliseconds since the epoch
+ *   original TTL      4 bytes, seconds
+ *   record type       2 bytes
+ *   host name         2-byte length, followed by the name in UTF-8
+ *   address length    1 byte, 4 or 16 for an address record, 0 otherwise
+ *   result            the address, or a 2-byte length followed by the text result in UTF-8
+ *
+ * Since expiration times are absolute, the remaining TTL of each restored record accounts for
+ * the time the resolver was down, and records that expired in the meantime are dropped.
+ * Snapshots are written to a temporary file that then replaces the previous snapshot, so a
+ * crash while saving never leaves a partial snapshot behind. Snapshots in the first version
+ * of the format, which has no original TTL, can still be loaded.
+ */
+public class CacheSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+    private static final int VERSION = 2;
+    private static final int COUNT_OFFSET = 16;
+    private static final int BUFFER_LENGTH = 64 * 1024;
+    private static final int MAX_STRING_LENGTH = 1024;
+    private static final int MAX_RECORD_LENGTH = 19 + 2 * MAX_STRING_LENGTH;
+
+    private final DNSCache cache;
+    private final Path file;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+    private ScheduledExecutorService scheduler = null;
+
+    /** Creates a snapshot of a cache, stored in a file. No file is read or written until load
+     * or save is called, or periodic saving is started.
+     *
+     * @param cache Cache to be saved and restored.
+     * @param file  File holding the snapshot.
+     */
+    public CacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /** Adds the records in the snapshot file to the cache. Records that have already expired
+     * are skipped. Nothing is added if the file is not a valid snapshot.
+     *
+     * @return The number of records added to the cache, or 0 if there is no snapshot file.
+     * @throws IOException If the file cannot be read, or is not a valid snapshot.
+     */
+    public int load() throws IOException {
+        List<ResourceRecord> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = 0;
+            if (snapshot.getInt() != MAGIC || (version = snapshot.getInt()) < 1 || version > VERSION)
+                throw new IOException(file + " is not a cache snapshot");
+            snapshot.getLong(); // time saved
+            int count = snapshot.getInt();
+            long now = DNSClock.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                ResourceRecord record = readRecord(snapshot, version);
+                if (record.getExpirationTime() > now)
+                    records.add(record);
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is truncated or corrupt");
+        }
+        records.forEach(cache::addResult);
+        return records.size();
+    }
+
+    /** Writes all records currently in the cache to the snapshot file, replacing the previous
+     * snapshot.
+     *
+     * @return The number of records saved.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public synchronized int save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] count = new int[1];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(DNSClock.currentTimeMillis()).putInt(0);
+            IOException[] failure = new IOException[1];
+            cache.forEachCachedRecord(record -> {
+                if (failure[0] != null || !record.isStillValid()) return;
+                try {
+                    if (buffer.remaining() < MAX_RECORD_LENGTH)
+                        flush(channel);
+                    if (writeRecord(record))
+                        count[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            flush(channel);
+            buffer.clear();
+            buffer.putInt(count[0]).flip();
+            channel.write(buffer, COUNT_OFFSET);
+            channel.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /** Starts saving the cache periodically in the background. Errors are reported on standard
+     * error, and do not stop later saves.
+     *
+     * @param intervalSeconds Time between the end of a save and the start of the next one.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println("Cannot save cache snapshot (" + e.getMessage() + ").");
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Stops periodic saving, if started, and saves the cache one last time.
+     *
+     * @throws IOException If the final snapshot cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (scheduler != null)
+                scheduler.shutdown();
+        }
+        save();
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Appends a record to the buffer, unless one of its strings is too long to be restored.
+     *
+     * @return true if the record was written, false if it was skipped.
+     */
+    private boolean writeRecord(ResourceRecord record) {
+        byte[] hostName = record.getHostName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = record.getAddress();
+        byte[] result = address != null ? address : record.getTextResult().getBytes(StandardCharsets.UTF_8);
+        if (hostName.length > MAX_STRING_LENGTH || result.length > MAX_STRING_LENGTH)
+            return false;
+
+        buffer.putLong(record.getExpirationTime());
+        buffer.putInt(record.getOriginalTTL());
+        buffer.putShort((short) record.getType().getCode());
+        buffer.putShort((short) hostName.length).put(hostName);
+        if (address != null) {
+            buffer.put((byte) result.length).put(result);
+        } else {
+            buffer.put((byte) 0);
+            buffer.putShort((short) result.length).put(result);
+        }
+        return true;
+    }
+
+    private static ResourceRecord readRecord(ByteBuffer snapshot, int version) {
+        long expirationTime = snapshot.getLong();
+        int originalTTL = version >= 2 ? snapshot.getInt()
+                : (int) Math.max(0, (expirationTime - DNSClock.currentTimeMillis()) / 1000);
+        RecordType type = RecordType.getByCode(snapshot.getShort() & 0xffff);
+        String hostName = readString(snapshot);
+        int addressLength = snapshot.get() & 0xff;
+        DNSNode node = new DNSNode(hostName, type);
+        if (addressLength == 0)
+            return new ResourceRecord(node, expirationTime, originalTTL, readString(snapshot));
+
+        byte[] address = new byte[addressLength];
+        snapshot.get(address);
+        return new ResourceRecord(node, expirationTime, originalTTL, address);
+    }
+
+    private static String readString(ByteBuffer snapshot) {
+        byte[] bytes = new byte[snapshot.getShort() & 0xffff];
+        snapshot.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
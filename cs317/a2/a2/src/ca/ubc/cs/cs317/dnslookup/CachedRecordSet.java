@@ -0,0 +1,228 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The set of resource records cached for a single DNS node. Records are kept in a concurrent
+ * map from a record to its most recent version, so that a record can be replaced by an
+ * equivalent one that expires later. Iterating over this set returns the most recent version
+ * of each record, and the iteration is weakly consistent: it never throws a
+ * ConcurrentModificationException, even if records are added by other threads.
+ *
+ * The set also keeps the earliest expiration time among its valid records. As long as that
+ * time has not been reached, every record in the set is known to be valid, so readers only
+ * need to compare it with the current time before using the set. Once it is reached, the
+ * records that expired are moved to a separate map of stale records, which are not part of the
+ * set itself. Stale records are kept for a while, to be served if the node cannot be resolved
+ * again; they are dropped as soon as a valid record is added.
+ *
+ * Changes to the number of records in the set, and to their estimated size, are reported to
+ * the store that owns the set, until the set is discarded.
+ *
+ * Records added to the set are made to share the node the set was created for, so the host
+ * name is kept once per node rather than once per record.
+ */
+class CachedRecordSet extends AbstractSet<ResourceRecord> {
+
+    // Record object and its map entry, without the text result
+    private static final int RECORD_OVERHEAD = 96;
+    // String object and its array header
+    private static final int STRING_OVERHEAD = 40;
+
+    private final Map<ResourceRecord, ResourceRecord> records = new ConcurrentHashMap<>();
+    private final Map<ResourceRecord, ResourceRecord> staleRecords = new ConcurrentHashMap<>();
+    private final HeapRecordStore store;
+    private final DNSNode node;
+    private volatile long nextExpiration = Long.MAX_VALUE;
+    private boolean discarded = false;
+
+    CachedRecordSet(HeapRecordStore store, DNSNode node) {
+        this.store = store;
+        this.node = node;
+    }
+
+    /** Estimates the number of bytes used by a cached record, including the map entry that
+     * holds it. This is only an approximation, used to enforce the memory budget of the cache.
+     *
+     * @param record Record to be measured.
+     * @return Approximate size of the record, in bytes.
+     */
+    static long sizeOf(ResourceRecord record) {
+        long size = RECORD_OVERHEAD + record.getHostName().length();
+        if (!record.hasAddress())
+            size += STRING_OVERHEAD + record.getTextResult().length();
+        return size;
+    }
+
+    /** Adds a record to this set. If an equivalent record is already in the set, it is only
+     * replaced if the new record expires after the existing one. Adding a valid record removes
+     * the stale records, since they are superseded by the new answer.
+     *
+     * @param record Record to be added.
+     * @return true if the record was added to the set, or false if an existing record was kept.
+     */
+    synchronized boolean put(ResourceRecord record) {
+        long now = DNSClock.currentTimeMillis();
+        if (mayHaveExpired(now))
+            moveExpired(now, Long.MIN_VALUE);
+        if (!staleRecords.isEmpty() && record.getExpirationTime() > now)
+            dropStale(Long.MAX_VALUE);
+        ResourceRecord oldRecord = records.get(record);
+        if (oldRecord != null && !oldRecord.expiresBefore(record))
+            return false;
+        record.shareNode(node);
+        records.put(record, record);
+        if (oldRecord == null)
+            adjustUsage(1, sizeOf(record));
+        else
+            adjustUsage(0, sizeOf(record) - sizeOf(oldRecord));
+        if (record.getExpirationTime() < nextExpiration)
+            nextExpiration = record.getExpirationTime();
+        return true;
+    }
+
+    /** Removes a specific record from this set. The record is only removed if it has not been
+     * replaced by a more recent version since it was added.
+     *
+     * @param record Record to be removed.
+     * @return true if the record was removed, false otherwise.
+     */
+    synchronized boolean remove(ResourceRecord record) {
+        if (records.get(record) == record)
+            records.remove(record);
+        else if (staleRecords.get(record) == record)
+            staleRecords.remove(record);
+        else
+            return false;
+        adjustUsage(-1, -sizeOf(record));
+        return true;
+    }
+
+    /** Returns true if this set holds a specific record, valid or stale, and not just an equal
+     * one that replaced it.
+     *
+     * @param record Record to look for.
+     * @return true if the record itself is in the set, false otherwise.
+     */
+    boolean holds(ResourceRecord record) {
+        return records.get(record) == record || staleRecords.get(record) == record;
+    }
+
+    /** Returns true if no record, valid or stale, is left in this set.
+     *
+     * @return true if the set can be discarded.
+     */
+    boolean isUnused() {
+        return records.isEmpty() && staleRecords.isEmpty();
+    }
+
+    /** Returns true if some valid record in this set may have expired by the specified time.
+     * This is a single comparison, and may be used on the read path to skip moveExpired.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     * @return true if moveExpired should be called before the records are used.
+     */
+    boolean mayHaveExpired(long now) {
+        return nextExpiration <= now;
+    }
+
+    /** Moves the valid records that expired by the specified time to the stale records, and
+     * updates the earliest expiration time of the remaining valid records. Stale records whose
+     * grace period ended are removed at the same time.
+     *
+     * @param now         Current time, in milliseconds since the epoch.
+     * @param staleCutoff Time by which stale records must have expired to be removed.
+     */
+    synchronized void moveExpired(long now, long staleCutoff) {
+        long next = Long.MAX_VALUE;
+        Iterator<ResourceRecord> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            ResourceRecord record = iterator.next();
+            if (record.getExpirationTime() <= now) {
+                iterator.remove();
+                staleRecords.put(record, record);
+            }
+            else if (record.getExpirationTime() < next)
+                next = record.getExpirationTime();
+        }
+        nextExpiration = next;
+        dropStale(staleCutoff);
+    }
+
+    /** Removes the stale records that expired by the specified time. */
+    private void dropStale(long cutoff) {
+        Iterator<ResourceRecord> iterator = staleRecords.values().iterator();
+        while (iterator.hasNext()) {
+            ResourceRecord record = iterator.next();
+            if (record.getExpirationTime() <= cutoff) {
+                iterator.remove();
+                adjustUsage(-1, -sizeOf(record));
+            }
+        }
+    }
+
+    /** Returns the stale records that expired after the specified time.
+     *
+     * @param after Time after which records must have expired, in milliseconds since the epoch.
+     * @return A new set with the matching records.
+     */
+    Set<ResourceRecord> staleSince(long after) {
+        Set<ResourceRecord> matching = new HashSet<>();
+        for (ResourceRecord record : staleRecords.values())
+            if (record.getExpirationTime() > after)
+                matching.add(record);
+        return matching;
+    }
+
+    /** Detaches this set from the store after it was removed, returning its records' usage to
+     * the store. Later changes to the set are no longer reported.
+     *
+     * @return The number of records the set held when it was discarded.
+     */
+    synchronized int discard() {
+        long bytes = 0;
+        for (ResourceRecord record : records.values())
+            bytes += sizeOf(record);
+        for (ResourceRecord record : staleRecords.values())
+            bytes += sizeOf(record);
+        int count = records.size() + staleRecords.size();
+        adjustUsage(-count, -bytes);
+        discarded = true;
+        return count;
+    }
+
+    private void adjustUsage(long entries, long bytes) {
+        if (!discarded)
+            store.adjustUsage(entries, bytes);
+    }
+
+    @Override
+    public Iterator<ResourceRecord> iterator() {
+        Iterator<ResourceRecord> iterator = records.values().iterator();
+        return new Iterator<ResourceRecord>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public ResourceRecord next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return records.containsKey(o);
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+}
@@ -0,0 +1,110 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The clients a forwarding server answers, as a list of networks in CIDR notation, such as
+ * "127.0.0.0/8,::1/128". An address without a prefix length stands for that single address.
+ *
+ * A server that answers anyone is an open resolver: it can be used to resolve names on behalf
+ * of any host, and to reflect and amplify traffic towards a spoofed source address. The default
+ * list only holds the loopback networks, so other networks have to be allowed explicitly.
+ */
+public class ClientAccessList {
+
+    /** Networks allowed when the dnslookup.allowedClients property is not set. */
+    public static final String DEFAULT_ALLOWED_CLIENTS = "127.0.0.0/8,::1/128";
+
+    private final List<Network> networks;
+
+    private ClientAccessList(List<Network> networks) {
+        this.networks = networks;
+    }
+
+    /** Returns the list given by the dnslookup.allowedClients property, or the loopback
+     * networks if it is not set.
+     *
+     * @return The clients allowed by default.
+     * @throws IllegalArgumentException If the property is not a valid list of networks.
+     */
+    public static ClientAccessList getDefault() {
+        return parse(System.getProperty("dnslookup.allowedClients", DEFAULT_ALLOWED_CLIENTS));
+    }
+
+    /** Parses a comma-separated list of networks, each an IP address (in numeric form)
+     * optionally followed by a slash and a prefix length.
+     *
+     * @param networks List of networks.
+     * @return The list of allowed clients.
+     * @throws IllegalArgumentException If an address or prefix length is not valid.
+     */
+    public static ClientAccessList parse(String networks) {
+        List<Network> parsed = new ArrayList<>();
+        for (String network : networks.split(",")) {
+            network = network.trim();
+            if (network.isEmpty()) continue;
+            int slash = network.indexOf('/');
+            String address = slash < 0 ? network : network.substring(0, slash);
+            // Only numeric addresses are accepted, so that parsing never waits for a name lookup.
+            if (!address.contains(":") && !address.matches("[0-9.]+"))
+                throw new IllegalArgumentException("invalid client address " + address);
+            byte[] bytes;
+            try {
+                bytes = InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("invalid client address " + address);
+            }
+            int prefixLength = bytes.length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(network.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefixLength = -1;
+                }
+                if (prefixLength < 0 || prefixLength > bytes.length * 8)
+                    throw new IllegalArgumentException("invalid prefix length in " + network);
+            }
+            parsed.add(new Network(bytes, prefixLength));
+        }
+        return new ClientAccessList(parsed);
+    }
+
+    /** Checks whether a client may be answered.
+     *
+     * @param client Address of the client.
+     * @return true if the address is in one of the networks of the list.
+     */
+    public boolean allows(InetAddress client) {
+        byte[] address = client.getAddress();
+        for (Network network : networks)
+            if (network.contains(address))
+                return true;
+        return false;
+    }
+
+    private static class Network {
+        private final byte[] prefix;
+        private final int length;
+
+        Network(byte[] prefix, int length) {
+            this.prefix = prefix;
+            this.length = length;
+        }
+
+        boolean contains(byte[] address) {
+            if (address.length != prefix.length)
+                return false;
+            int bytes = length / 8;
+            for (int i = 0; i < bytes; i++)
+                if (address[i] != prefix[i])
+                    return false;
+            int bits = length % 8;
+            if (bits == 0)
+                return true;
+            int mask = 0xff << (8 - bits) & 0xff;
+            return (address[bytes] & mask) == (prefix[bytes] & mask);
+        }
+    }
+}
@@ -1,21 +1,91 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * The cache is safe for use by multiple threads. Nodes are not kept in any particular order;
+ * methods that iterate over the cache sort the nodes when they are called.
+ *
+ * The cache is bounded by a maximum number of records and an estimated memory budget. When
+ * either limit is exceeded, whole nodes are evicted. The limits can be changed at run time,
+ * and default to the values of the system properties dnscache.maxEntries and
+ * dnscache.maxBytes.
+ *
+ * Records are kept by a storage engine chosen at startup with the system property
+ * dnscache.store. The default, heap, keeps records as objects and evicts nodes as selected by
+ * the policy in dnscache.policy (lru or tinylfu). Policies track nodes rather than records, and
+ * are sized for dnscache.expectedNodes nodes, half of dnscache.maxEntries by default. The
+ * alternative, offheap, keeps records in direct memory outside the Java heap, so that very
+ * large caches do not slow down garbage collection; it uses its own CLOCK eviction instead of
+ * a policy.
+ *
+ * Expired records are not returned by getCachedResults, but are kept for a grace period given
+ * by the system property dnscache.staleSeconds (one day by default, zero to disable). During
+ * that period they can be obtained with getStaleResults, so that a resolver can still answer
+ * when the authoritative servers cannot be reached, as described in RFC 8767. Records kept
+ * for the grace period count toward the limits of the cache like valid ones, since they still
+ * take up memory; a node that only has stale records is as likely to be evicted as any other.
+ *
+ * Negative answers, for names that do not exist or have no records of a type, are cached
+ * separately from records, for the negative TTL given by the SOA record of the response (RFC
+ * 2308). At most dnscache.maxNegativeEntries of them are kept.
+ *
+ * Each cache has a background thread that removes expired records. The shared instance lives
+ * as long as the program, but caches created separately should be closed once they are no
+ * longer used, which stops that thread.
  */
-public class DNSCache {
+public class DNSCache implements AutoCloseable {
+
+    private static final long DEFAULT_MAXIMUM_ENTRIES = 1000000;
+    private static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_MAXIMUM_NEGATIVE_ENTRIES = 100000;
+    private static final long DEFAULT_STALE_SECONDS = 24 * 60 * 60;
+    // Most nodes hold one or two records, such as a single address or a pair of name servers.
+    private static final long DEFAULT_RECORDS_PER_NODE = 2;
+    private static final long STALE_ANSWER_TTL_SECONDS = 30;
 
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final RecordStore store;
+    private final NegativeCache negativeCache;
+
+    private volatile long maximumEntries;
+    private volatile long maximumBytes;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder negativeHitCount = new LongAdder();
+
+    /** Creates a cache configured by the dnscache system properties. Programs normally share
+     * the cache returned by getInstance; a cache of their own keeps resolvers from sharing
+     * results, for example to measure each of them from a cold start, and must be closed
+     * once it is no longer used.
+     */
+    public DNSCache() {
+        maximumEntries = Long.getLong("dnscache.maxEntries", DEFAULT_MAXIMUM_ENTRIES);
+        maximumBytes = Long.getLong("dnscache.maxBytes", DEFAULT_MAXIMUM_BYTES);
+        negativeCache = new NegativeCache(Long.getLong("dnscache.maxNegativeEntries", DEFAULT_MAXIMUM_NEGATIVE_ENTRIES));
+        long staleMillis = Long.getLong("dnscache.staleSeconds", DEFAULT_STALE_SECONDS) * 1000;
+        String storeName = System.getProperty("dnscache.store", "heap");
+        if (storeName.equalsIgnoreCase("offheap"))
+            store = new OffHeapRecordStore(maximumEntries, maximumBytes, staleMillis);
+        else if (storeName.equalsIgnoreCase("heap"))
+            store = new HeapRecordStore(maximumEntries, maximumBytes, staleMillis,
+                    createEvictionPolicy(System.getProperty("dnscache.policy", "tinylfu"),
+                            Long.getLong("dnscache.expectedNodes", maximumEntries / DEFAULT_RECORDS_PER_NODE)));
+        else
+            throw new IllegalArgumentException("Unknown cache store: " + storeName);
+    }
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+    /** Returns the DNS cache shared by default by every resolver in the program. It must not
+     * be closed.
      *
      * @return Instance of a DNS cache.
      */
@@ -23,6 +93,14 @@ public class DNSCache {
         return instance;
     }
 
+    /** Stops the background thread that removes expired records. The cache must not be used
+     * afterwards.
+     */
+    @Override
+    public void close() {
+        store.close();
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
      * are cached for the specified query, returns an empty set. Expired results are removed
      * from the cache before being returned. This method does not perform the query itself, it
@@ -32,12 +110,94 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
-            return Collections.emptySet();
+        Set<ResourceRecord> results = store.get(node);
+        if (results.isEmpty())
+            missCount.increment();
+        else
+            hitCount.increment();
+        return results;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Returns the records cached for a particular query, like getCachedResults, but without
+     * counting a hit or a miss and without affecting which nodes are evicted. This is meant for
+     * lookups made by the resolver for its own purposes, such as finding cached delegations.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> peek(DNSNode node) {
+        return store.peek(node);
+    }
+
+    /** Returns the negative answer cached for a particular query, if any. A name error cached
+     * for the host name applies to every record type.
+     *
+     * @param node DNS query (host name and record type) to look up.
+     * @return NAME_ERROR if the name is known not to exist, NO_DATA if it is known to have no
+     *         records of the type, or null if no negative answer is cached.
+     */
+    public NegativeAnswer getNegativeResult(DNSNode node) {
+        NegativeAnswer answer = negativeCache.get(node);
+        if (answer != null)
+            negativeHitCount.increment();
+        return answer;
+    }
+
+    /** Returns the negative answer cached for a particular query, like getNegativeResult, but
+     * without counting a negative hit. This is meant for checks made after a query has been
+     * resolved, which are not lookups of their own.
+     *
+     * @param node DNS query (host name and record type) to look up.
+     * @return NAME_ERROR, NO_DATA, or null if no negative answer is cached.
+     */
+    public NegativeAnswer peekNegativeResult(DNSNode node) {
+        return negativeCache.get(node);
+    }
+
+    /** Returns the SOA record to be sent with the negative answer cached for a particular
+     * query, without counting a negative hit. Its TTL is the time left before the negative
+     * answer expires.
+     *
+     * @param node DNS query (host name and record type) to look up.
+     * @return The SOA record of the negative answer, or null if no negative answer is cached.
+     */
+    public ResourceRecord peekNegativeSoa(DNSNode node) {
+        return negativeCache.getSoa(node);
+    }
+
+    /** Caches a negative answer obtained from an authoritative server.
+     *
+     * @param node   DNS query (host name and record type) the answer was obtained for.
+     * @param answer Kind of negative answer. A name error is cached for the host name.
+     * @param ttl    Negative TTL, in seconds, as returned by DNSResponse.getNegativeTTL. Answers
+     *               with a TTL of zero are not cached.
+     * @param soa    SOA record from the authority section of the answer, which is returned
+     *               along with the negative answer when it is served from the cache.
+     */
+    public void addNegativeResult(DNSNode node, NegativeAnswer answer, long ttl, ResourceRecord soa) {
+        if (answer == NegativeAnswer.NAME_ERROR)
+            negativeCache.addNameError(node, ttl, soa);
+        else
+            negativeCache.addNoData(node, ttl, soa);
+    }
+
+    /** Returns the records cached for a particular query that have expired, but are still
+     * within the grace period. The records returned are copies that expire after a short TTL
+     * (30 seconds, as recommended by RFC 8767), and are not themselves cached. This method
+     * should only be used once resolving the query again failed or is taking too long.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of expired resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Set<ResourceRecord> stale = store.getStale(node);
+        if (stale.isEmpty())
+            return stale;
+        long expirationTime = DNSClock.currentTimeMillis() + STALE_ANSWER_TTL_SECONDS * 1000;
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord record : stale)
+            results.add(record.withExpirationTime(expirationTime));
+        return Collections.unmodifiableSet(results);
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -51,42 +211,135 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
-        }
+        store.add(record);
+    }
+
+    /** Changes the limits of the cache. If the cache currently exceeds the new limits, nodes
+     * are evicted immediately.
+     *
+     * @param maximumEntries Maximum number of records kept in the cache.
+     * @param maximumBytes   Maximum estimated size of the cached records, in bytes.
+     */
+    public void setLimits(long maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        store.setLimits(maximumEntries, maximumBytes);
+    }
+
+    /** Replaces the eviction policy. All nodes currently in the cache are registered with the
+     * new policy as if they had just been added. If the cache uses the off-heap store, which
+     * always evicts with CLOCK, the policy is ignored.
+     *
+     * @param policy New eviction policy.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        store.setEvictionPolicy(policy);
+    }
+
+    /** Creates an eviction policy by name.
+     *
+     * @param name          Name of the policy, either lru or tinylfu.
+     * @param expectedNodes Number of nodes the cache is expected to hold when it is full.
+     * @return A new eviction policy.
+     */
+    public static EvictionPolicy createEvictionPolicy(String name, long expectedNodes) {
+        if (name.equalsIgnoreCase("lru"))
+            return new LruEvictionPolicy();
+        else if (name.equalsIgnoreCase("tinylfu"))
+            return new TinyLfuEvictionPolicy((int) Math.max(1, Math.min(expectedNodes, 1 << 26)));
+        throw new IllegalArgumentException("Unknown eviction policy: " + name);
+    }
+
+    public long getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /** @return The number of records currently in the cache. */
+    public long getEntryCount() {
+        return store.getEntryCount();
+    }
+
+    /** @return The estimated size of the records currently in the cache, in bytes. */
+    public long getByteCount() {
+        return store.getByteCount();
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** @return The number of calls to getCachedResults that returned at least one record. */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** @return The number of calls to getCachedResults that returned no records. */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** @return The number of calls to getNegativeResult that returned a negative answer. Each
+     *          normally follows a call to getCachedResults counted as a miss.
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    /** @return The number of negative answers currently in the cache. */
+    public long getNegativeEntryCount() {
+        return negativeCache.getEntryCount();
+    }
+
+    /** @return The number of records removed from the cache to keep it within its limits. */
+    public long getEvictionCount() {
+        return store.getEvictionCount();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
      * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * the action is performed. Queries are visited in order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : sortedNodes()) {
+            Set<ResourceRecord> results = store.peek(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
      * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * the action is performed. Queries are visited in order.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
+        for (DNSNode node : sortedNodes())
+            store.peek(node).forEach(record -> consumer.accept(node, record));
+    }
+
+    /** Performs an action for each cached record, in no particular order and without removing
+     * expired records first. This is cheaper than forEachRecord for large caches, and is meant
+     * for bulk operations such as writing snapshots.
+     *
+     * @param consumer Action to be performed for each record.
+     */
+    void forEachCachedRecord(Consumer<ResourceRecord> consumer) {
+        store.forEachRecord(consumer);
+    }
+
+    /** Returns a snapshot of the nodes currently in the cache, sorted by host name and type.
+     * Sorting is only done here, so that adding results does not pay for keeping nodes in
+     * order.
+     *
+     * @return A sorted list of the cached nodes.
+     */
+    private List<DNSNode> sortedNodes() {
+        List<DNSNode> nodes = store.nodes();
+        Collections.sort(nodes);
+        return nodes;
     }
 
 }
@@ -0,0 +1,37 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A coarse clock used to check the expiration of cached records. Reading the system clock on
+ * every cache access is comparatively expensive, so the current time is cached in a volatile
+ * field that a background thread refreshes every few milliseconds. Reading the time is then a
+ * single memory read.
+ */
+public class DNSClock {
+
+    private static final long TICK_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = System.currentTimeMillis();
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /** Returns the cached current time. The value may lag behind the system clock by up to a
+     * few milliseconds.
+     *
+     * @return The current time, in milliseconds since the epoch.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
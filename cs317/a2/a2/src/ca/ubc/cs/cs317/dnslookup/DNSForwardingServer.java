@@ -0,0 +1,360 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** A local caching DNS server. Stub resolvers send standard recursive queries over UDP or TCP,
+ * and the server answers them from the DNS cache, or resolves them iteratively when they are
+ * not cached.
+ *
+ * UDP queries are received by a pool of worker threads. Where the platform supports it, each
+ * worker has its own socket bound to the same port (SO_REUSEPORT), so the kernel spreads
+ * queries over the workers. Workers answer cache hits directly, and hand cache misses to a
+ * separate pool, so that slow resolutions never hold up cached answers. Each TCP connection is
+ * served by its own thread, and is closed once it has been idle for a while.
+ *
+ * Both pools are bounded, so that a flood of queries for names that are not cached, or of idle
+ * TCP connections, cannot create threads without limit. A cache miss that finds every
+ * resolution thread busy and the queue full is answered with a server failure (SERVFAIL)
+ * straight away, and a TCP connection beyond the limit is closed as soon as it is accepted.
+ *
+ * Names known not to exist are answered with a name error (NXDOMAIN), and names known to have
+ * no records of the requested type with an empty answer, from the negative answers in the cache.
+ * Both carry the SOA record the negative answer was cached with, so that clients can cache
+ * them in turn.
+ *
+ * Only clients in an access list are answered, so that the server cannot be used as an open
+ * resolver. Queries from other clients are dropped without a response, which gives nothing to
+ * reflect towards a spoofed source address, and their TCP connections are closed as soon as
+ * they are accepted. Servers normally listen on the loopback address only.
+ */
+public class DNSForwardingServer implements Closeable {
+
+    private static final int MAX_UDP_RESPONSE_LENGTH = 512;
+    private static final int MAX_TCP_MESSAGE_LENGTH = 65535;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RESOLUTION_THREADS = 64;
+    private static final int MAX_QUEUED_RESOLUTIONS = 1024;
+    private static final int MAX_TCP_CONNECTIONS = 128;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final ClientAccessList allowedClients;
+    private final Resolver resolver;
+    private final List<DatagramChannel> udpChannels = new ArrayList<>();
+    private final ServerSocketChannel tcpChannel;
+    private final List<Thread> threads = new ArrayList<>();
+    private final ExecutorService resolutionPool;
+    private final ExecutorService connectionPool;
+    private volatile boolean closed = false;
+
+    /** Starts a server listening on a local address and port, for both UDP and TCP.
+     *
+     * @param address        Local address and port to listen on. Unless remote clients are to
+     *                       be served, this should be a loopback address.
+     * @param workers        Number of threads receiving UDP queries.
+     * @param allowedClients Clients whose queries are answered.
+     * @param resolver       Resolver that answers queries, from its cache when possible.
+     * @throws IOException If the address cannot be bound.
+     */
+    public DNSForwardingServer(InetSocketAddress address, int workers, ClientAccessList allowedClients,
+                               Resolver resolver) throws IOException {
+        this.allowedClients = allowedClients;
+        this.resolver = resolver;
+        ThreadPoolExecutor resolutionPool = new ThreadPoolExecutor(RESOLUTION_THREADS, RESOLUTION_THREADS,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_RESOLUTIONS),
+                runnable -> daemon(runnable, "dns-server-resolver"));
+        resolutionPool.allowCoreThreadTimeOut(true);
+        this.resolutionPool = resolutionPool;
+        this.connectionPool = new ThreadPoolExecutor(0, MAX_TCP_CONNECTIONS, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> daemon(runnable, "dns-server-tcp-connection"));
+
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort)
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        first.bind(address);
+        udpChannels.add(first);
+        // Bind the other sockets to the port actually chosen, in case the port given was 0.
+        InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress();
+        for (int i = 1; reusePort && i < workers; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(bound);
+            udpChannels.add(channel);
+        }
+
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        tcpChannel.bind(bound);
+
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel channel = udpChannels.get(i % udpChannels.size());
+            threads.add(daemon(() -> serveUdp(channel), "dns-server-udp-" + i));
+        }
+        threads.add(daemon(this::acceptTcp, "dns-server-tcp"));
+        threads.forEach(Thread::start);
+    }
+
+    /** Returns the port the server is listening on.
+     *
+     * @return The local UDP and TCP port.
+     */
+    public int getPort() {
+        return tcpChannel.socket().getLocalPort();
+    }
+
+    /** Returns the address the server is listening on.
+     *
+     * @return The local UDP and TCP address and port.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) tcpChannel.socket().getLocalSocketAddress();
+    }
+
+    private void serveUdp(DatagramChannel channel) {
+        ByteBuffer request = ByteBuffer.allocate(MAX_UDP_RESPONSE_LENGTH);
+        ByteBuffer response = ByteBuffer.allocate(MAX_UDP_RESPONSE_LENGTH);
+        DNSResponseEncoder encoder = new DNSResponseEncoder();
+        while (!closed) {
+            SocketAddress client;
+            try {
+                request.clear();
+                client = channel.receive(request);
+                request.flip();
+            } catch (IOException e) {
+                if (closed) return;
+                continue;
+            }
+            if (!isAllowed(client))
+                continue;
+            response.clear();
+            answer(request, response, encoder, true, missed -> {
+                // Cache miss: resolve on the resolution pool, then reply from there.
+                ByteBuffer copy = ByteBuffer.allocate(request.remaining());
+                copy.put(request.duplicate()).flip();
+                try {
+                    resolutionPool.execute(() -> {
+                        ByteBuffer missResponse = ByteBuffer.allocate(MAX_UDP_RESPONSE_LENGTH);
+                        answerMiss(copy, missed, missResponse, new DNSResponseEncoder());
+                        missResponse.flip();
+                        send(channel, missResponse, client);
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Too many resolutions in progress: fail this one rather than queue it.
+                    encoder.encode(queryID(request), responseFlags(request) | DNSResponseEncoder.RCODE_SERVER_FAILURE,
+                            missed, Collections.emptySet(), response);
+                }
+            });
+            if (response.position() > 0) {
+                response.flip();
+                send(channel, response, client);
+            }
+        }
+    }
+
+    private void send(DatagramChannel channel, ByteBuffer response, SocketAddress client) {
+        try {
+            channel.send(response, client);
+        } catch (IOException e) {
+            // The client will retry; nothing else can be done for a lost response.
+        }
+    }
+
+    private void acceptTcp() {
+        while (!closed) {
+            try {
+                SocketChannel connection = tcpChannel.accept();
+                if (!isAllowed(connection.getRemoteAddress())) {
+                    connection.close();
+                    continue;
+                }
+                try {
+                    connectionPool.execute(() -> serveTcp(connection));
+                } catch (RejectedExecutionException e) {
+                    // Too many connections open: the client can retry later.
+                    connection.close();
+                }
+            } catch (IOException e) {
+                if (closed) return;
+            }
+        }
+    }
+
+    private boolean isAllowed(SocketAddress client) {
+        return client instanceof InetSocketAddress
+                && allowedClients.allows(((InetSocketAddress) client).getAddress());
+    }
+
+    /** Serves queries on a TCP connection until the client closes it, or leaves it idle for too
+     * long. Each message is preceded by its length, as a two-byte integer.
+     *
+     * @param connection Connection to a client.
+     */
+    private void serveTcp(SocketChannel connection) {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        ByteBuffer request = ByteBuffer.allocate(MAX_TCP_MESSAGE_LENGTH);
+        ByteBuffer response = ByteBuffer.allocate(2 + MAX_TCP_MESSAGE_LENGTH);
+        DNSResponseEncoder encoder = new DNSResponseEncoder();
+        try (SocketChannel channel = connection) {
+            // Reads go through the socket's stream, so that the idle timeout applies to them.
+            channel.socket().setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            InputStream in = channel.socket().getInputStream();
+            while (!closed) {
+                length.clear();
+                readFully(in, length);
+                request.clear().limit(length.getShort(0) & 0xffff);
+                readFully(in, request);
+                request.flip();
+
+                response.clear().position(2);
+                answer(request, response, encoder, false, null);
+                response.putShort(0, (short) (response.position() - 2));
+                response.flip();
+                while (response.hasRemaining())
+                    channel.write(response);
+            }
+        } catch (EOFException | ClosedChannelException e) {
+            // Client closed the connection.
+        } catch (IOException e) {
+            // Connection failed or idle; the client will reconnect.
+        }
+    }
+
+    private static void readFully(InputStream in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (count < 0)
+                throw new EOFException();
+            buffer.position(buffer.position() + count);
+        }
+    }
+
+    /** Answers a query. The response is written to the response buffer, unless the query is a
+     * cache miss and a miss handler is given, in which case the handler is called instead and
+     * nothing is written. Lookups go through the resolver, so that each counts once in the cache
+     * statistics, and gets records prefetched and expired records served like any other lookup.
+     *
+     * @param request     Buffer holding the query.
+     * @param response    Buffer the response is written to, from its current position.
+     * @param encoder     Encoder used for the response.
+     * @param cachedOnly  If true, only answer from the cache, and call onCacheMiss otherwise.
+     * @param onCacheMiss Handler for cache misses when cachedOnly is true.
+     */
+    private void answer(ByteBuffer request, ByteBuffer response, DNSResponseEncoder encoder,
+                        boolean cachedOnly, Consumer<DNSNode> onCacheMiss) {
+        if (request.remaining() < 12) return; // not even a header: ignore
+        int queryID = queryID(request);
+        int requestFlags = request.getShort(request.position() + 2) & 0xffff;
+        if ((requestFlags & DNSResponseEncoder.FLAG_QR) != 0) return; // a response, not a query
+        int flags = responseFlags(request);
+
+        DNSNode question;
+        try {
+            question = DNSResponseDecoder.decodeQuestion(request);
+        } catch (DNSException e) {
+            encoder.encode(queryID, flags | DNSResponseEncoder.RCODE_FORMAT_ERROR, null, Collections.emptySet(), response);
+            return;
+        }
+        if ((requestFlags & OPCODE_MASK) != 0 || question.getType() == RecordType.OTHER) {
+            encoder.encode(queryID, flags | DNSResponseEncoder.RCODE_NOT_IMPLEMENTED, question, Collections.emptySet(), response);
+            return;
+        }
+
+        Set<ResourceRecord> results = resolver.findCachedResults(question);
+        if (results == null) {
+            if (cachedOnly) {
+                onCacheMiss.accept(question);
+                return;
+            }
+            results = resolver.resolveUncached(question);
+        }
+        encode(queryID, flags, question, results, encoder, response);
+    }
+
+    /** Answers a query that answer found to be a cache miss, by resolving it.
+     *
+     * @param request  Buffer holding the query.
+     * @param question Question of the query.
+     * @param response Buffer the response is written to, from its current position.
+     * @param encoder  Encoder used for the response.
+     */
+    private void answerMiss(ByteBuffer request, DNSNode question, ByteBuffer response, DNSResponseEncoder encoder) {
+        Set<ResourceRecord> results = resolver.resolveUncached(question);
+        encode(queryID(request), responseFlags(request), question, results, encoder, response);
+    }
+
+    private void encode(int queryID, int flags, DNSNode question, Set<ResourceRecord> results,
+                        DNSResponseEncoder encoder, ByteBuffer response) {
+        NegativeAnswer negative = null;
+        Set<ResourceRecord> authority = Collections.emptySet();
+        if (results.isEmpty() && (negative = resolver.getCache().peekNegativeResult(question)) != null) {
+            ResourceRecord soa = resolver.getCache().peekNegativeSoa(question);
+            if (soa != null)
+                authority = Collections.singleton(soa);
+        }
+        encoder.encode(queryID, flags | rCodeFor(results, negative), question, results, authority, response);
+    }
+
+    private static int queryID(ByteBuffer request) {
+        return request.getShort(request.position()) & 0xffff;
+    }
+
+    /** Returns the flags of the response to a query, without the response code: the opcode and
+     * RD flag of the query, and RA.
+     */
+    private static int responseFlags(ByteBuffer request) {
+        int requestFlags = request.getShort(request.position() + 2) & 0xffff;
+        return (requestFlags & (OPCODE_MASK | DNSResponseEncoder.FLAG_RD)) | DNSResponseEncoder.FLAG_RA;
+    }
+
+    /** Chooses the response code for an answer. A query with no records is a name error or a
+     * successful empty answer if a negative answer was cached for it, and a server failure
+     * otherwise, since it could not be resolved.
+     */
+    private static int rCodeFor(Set<ResourceRecord> results, NegativeAnswer negative) {
+        if (!results.isEmpty() || negative == NegativeAnswer.NO_DATA)
+            return DNSResponseEncoder.RCODE_NO_ERROR;
+        if (negative == NegativeAnswer.NAME_ERROR)
+            return DNSResponseEncoder.RCODE_NAME_ERROR;
+        return DNSResponseEncoder.RCODE_SERVER_FAILURE;
+    }
+
+    /** Stops accepting queries and closes all sockets. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (DatagramChannel channel : udpChannels)
+            channel.close();
+        tcpChannel.close();
+        resolutionPool.shutdownNow();
+        connectionPool.shutdownNow();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
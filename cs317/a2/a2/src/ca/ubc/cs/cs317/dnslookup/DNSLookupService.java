@@ -1,34 +1,30 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Console;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Command-line interface to the resolver: reads commands from the console or standard input,
+ * and prints the results of lookups. The resolution itself is done by a Resolver, which can
+ * also be used directly by other programs.
+ */
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
-
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
-
-    private static DNSCache cache = DNSCache.getInstance();
+    private static final int DEFAULT_BATCH_PARALLELISM = 64;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+    private static final long DEFAULT_METRICS_INTERVAL_SECONDS = 60;
 
-    private static Random random = new Random();
-    private static final int UPPER_QUERY_ID_BOUND = 65535;
-    private static final int ASCII_PERIOD = 0x2e;
-    private static int globalIndirectionLevel = 0;
+    private static Resolver resolver;
+    private static DNSForwardingServer forwardingServer;
 
     /**
      * Main function, called when program is first invoked.
@@ -37,31 +33,49 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [listenPort]");
+            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at,");
+            System.err.println("and listenPort is a port on which to serve DNS queries from local clients.");
+            System.err.println("The server listens on the dnslookup.listenAddress property (loopback by default), and only");
+            System.err.println("answers clients in dnslookup.allowedClients (a list of networks, loopback by default).");
             System.exit(1);
         }
 
         try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            initialize(InetAddress.getByName(args[0]));
+            System.out.println("Root DNS server is: " + resolver.getRootServer().getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
-        }
-
-        try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
 
+        String snapshotFile = System.getProperty("dnslookup.snapshot");
+        if (snapshotFile != null)
+            restoreCache(Paths.get(snapshotFile),
+                    Long.getLong("dnslookup.snapshotInterval", DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
+
+        String metricsFile = System.getProperty("dnslookup.metricsFile");
+        if (metricsFile != null)
+            exportMetrics(Paths.get(metricsFile),
+                    Long.getLong("dnslookup.metricsInterval", DEFAULT_METRICS_INTERVAL_SECONDS));
+
+        if (args.length == 2) {
+            try {
+                startServer(Integer.parseInt(args[1]), System.getProperty("dnslookup.listenAddress"));
+            } catch (IllegalArgumentException | IOException ex) {
+                System.err.println("Cannot listen on port " + args[1] + " (" + ex.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
+        boolean quit = false;
         do {
             // Use console if one is available, or standard input if not.
             String commandLine;
@@ -86,14 +100,16 @@ public class DNSLookupService {
             String[] commandArgs = commandLine.split(" ");
 
             if (commandArgs[0].equalsIgnoreCase("quit") ||
-                    commandArgs[0].equalsIgnoreCase("exit"))
+                    commandArgs[0].equalsIgnoreCase("exit")) {
+                quit = true;
                 break;
+            }
             else if (commandArgs[0].equalsIgnoreCase("server")) {
                 // SERVER: Change root nameserver
                 if (commandArgs.length == 2) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                        resolver.setRootServer(InetAddress.getByName(commandArgs[1]));
+                        System.out.println("Root DNS server is now: " + resolver.getRootServer().getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
                         continue;
@@ -103,21 +119,34 @@ public class DNSLookupService {
                     continue;
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    if (commandArgs[1].equalsIgnoreCase("on"))
-                        verboseTracing = true;
-                    else if (commandArgs[1].equalsIgnoreCase("off"))
-                        verboseTracing = false;
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                // TRACE: Turn tracing on for a sample of lookups, to the console or a file, or off
+                double rate = 1;
+                if (commandArgs.length >= 2 && commandArgs.length <= 4 && commandArgs[1].equalsIgnoreCase("on")) {
+                    try {
+                        if (commandArgs.length >= 3)
+                            rate = Double.parseDouble(commandArgs[2]);
+                        if (!(rate > 0 && rate <= 1)) throw new NumberFormatException();
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid sampling rate. Must be greater than 0 and at most 1.");
                         continue;
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
-                } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                } else if (commandArgs.length != 2 || !commandArgs[1].equalsIgnoreCase("off")) {
+                    System.err.println("Invalid call. Format:\n\ttrace on [rate] [file]\n\ttrace off");
+                    continue;
+                }
+                try {
+                    if (commandArgs[1].equalsIgnoreCase("on"))
+                        resolver.startTracing(rate, commandArgs.length == 4 ? Paths.get(commandArgs[3]) : null);
+                    else
+                        resolver.stopTracing();
+                } catch (IOException ex) {
+                    System.err.println("Cannot trace to " + commandArgs[3] + " (" + ex.getMessage() + ").");
                     continue;
                 }
+                System.out.println("Verbose tracing is now: " + (resolver.isTracing()
+                        ? "ON" + (rate < 1 ? ", " + rate * 100 + "% of lookups" : "")
+                        + (commandArgs.length == 4 ? ", to " + commandArgs[3] : "")
+                        : "OFF"));
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -136,14 +165,94 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all names in a file concurrently.
+                RecordType type = RecordType.A;
+                int parallelism = DEFAULT_BATCH_PARALLELISM;
+                if (commandArgs.length < 2 || commandArgs.length > 4) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [type] [parallelism]");
+                    continue;
+                }
+                try {
+                    if (commandArgs.length >= 3)
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                    continue;
+                }
+                try {
+                    if (commandArgs.length == 4)
+                        parallelism = Integer.parseInt(commandArgs[3]);
+                    if (parallelism < 1) throw new NumberFormatException();
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid parallelism. Must be a positive integer.");
+                    continue;
+                }
+                batchFindAndPrintResults(commandArgs[1], type, parallelism);
+            } else if (commandArgs[0].equalsIgnoreCase("listen")) {
+                // LISTEN: Start or stop serving DNS queries from local clients
+                if (commandArgs.length != 2 && commandArgs.length != 3) {
+                    System.err.println("Invalid call. Format:\n\tlisten port [address]|off");
+                    continue;
+                }
+                try {
+                    stopServer();
+                    if (commandArgs[1].equalsIgnoreCase("off")) {
+                        System.out.println("Server stopped.");
+                    } else {
+                        startServer(Integer.parseInt(commandArgs[1]),
+                                commandArgs.length == 3 ? commandArgs[2] : System.getProperty("dnslookup.listenAddress"));
+                    }
+                } catch (IllegalArgumentException | IOException ex) {
+                    System.err.println("Cannot listen on port " + commandArgs[1] + " (" + ex.getMessage() + ").");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Change the UDP payload size advertised in queries, or stop using EDNS
+                if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                    continue;
+                }
+                try {
+                    resolver.setUdpPayloadSize(commandArgs[1].equalsIgnoreCase("off") ? 0
+                            : Integer.parseInt(commandArgs[1]));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid payload size. Must be between 512 and 65535, or off.");
+                    continue;
+                }
+                int size = resolver.getUdpPayloadSize();
+                System.out.println("EDNS is now: " + (size > 0 ? "ON, " + size + " bytes" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print resolver metrics, or write them as JSON
+                if (commandArgs.length == 1) {
+                    resolver.getMetrics().printSummary(System.out);
+                } else if (commandArgs[1].equalsIgnoreCase("json") && commandArgs.length <= 3) {
+                    if (commandArgs.length == 2) {
+                        System.out.println(resolver.getMetrics().toJson());
+                    } else {
+                        try {
+                            resolver.getMetrics().writeJson(Paths.get(commandArgs[2]));
+                        } catch (IOException ex) {
+                            System.err.println("Cannot write metrics (" + ex.getMessage() + ").");
+                        }
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstats [json [file]]");
+                    continue;
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                resolver.getCache().forEachNode(DNSLookupService::printResults);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\tbatch file [type] [parallelism]");
+                System.err.println("\tlisten port [address]|off");
+                System.err.println("\ttrace on [rate] [file]");
+                System.err.println("\ttrace off");
+                System.err.println("\tedns size|off");
                 System.err.println("\tserver IP");
+                System.err.println("\tstats [json [file]]");
                 System.err.println("\tdump");
                 System.err.println("\tquit");
                 continue;
@@ -151,349 +260,177 @@ public class DNSLookupService {
 
         } while (true);
 
+        if (forwardingServer != null && !quit) {
+            // Input closed while serving: keep running as a daemon until the process is killed.
+            System.out.println("Serving DNS queries on " + forwardingServer.getAddress() + ".");
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         in.close();
-        socket.close();
+        try {
+            stopServer();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            resolver.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         System.out.println("Goodbye!");
     }
 
     /**
-     * Finds all results for a host name and type and prints them on the standard output.
+     * Creates the resolver used for lookups, with the given root server. This must be called
+     * before any lookup is made.
      *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
+     * @param root Address of the root DNS server to start the search at.
+     * @return The new resolver.
+     * @throws IOException If the transport cannot be opened.
      */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-        DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
-        globalIndirectionLevel = 0;
+    public static Resolver initialize(InetAddress root) throws IOException {
+        resolver = new Resolver(root);
+        return resolver;
     }
 
     /**
-     * Finds all the result for a specific node.
+     * Loads the cache from a snapshot file, if the file exists, and keeps the file up to date
+     * with periodic snapshots. A last snapshot is written when the program exits, including
+     * when it is terminated by a signal.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param file            Snapshot file.
+     * @param intervalSeconds Time between periodic snapshots, in seconds.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-
-        // TODO To be completed by the student
-        Set<ResourceRecord> results = cache.getCachedResults(node);
-        if (!results.isEmpty()) { // check if cache already contains results
-            return results;
+    private static void restoreCache(Path file, long intervalSeconds) {
+        CacheSnapshot snapshot = new CacheSnapshot(resolver.getCache(), file);
+        try {
+            int loaded = snapshot.load();
+            if (loaded > 0)
+                System.out.println("Restored " + loaded + " cached records from " + file + ".");
+        } catch (IOException ex) {
+            System.err.println("Cannot restore cache snapshot (" + ex.getMessage() + ").");
         }
-
-        retrieveResultsFromServer(node, rootServer);
-        return cache.getCachedResults(node);
+        snapshot.start(intervalSeconds);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                snapshot.close();
+            } catch (IOException ex) {
+                System.err.println("Cannot save cache snapshot (" + ex.getMessage() + ").");
+            }
+        }, "dns-cache-snapshot-final"));
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Writes the resolver metrics as JSON to a file periodically, and once more when the
+     * program exits, so that they can be collected by other programs.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param file            File the metrics are written to.
+     * @param intervalSeconds Time between exports, in seconds.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        // TODO To be completed by the student
-        try {
-            DNSResponse dnsResponse = performQuery(node, server);
-            if (dnsResponse.getAuthoritative()) {
-                handleCnameQuery(node, dnsResponse);
-            } 
-            if (dnsResponse.getAnswerRecords().isEmpty()) {
-                handleNameServerQuery(node, dnsResponse);
+    private static void exportMetrics(Path file, long intervalSeconds) {
+        ResolverMetrics metrics = resolver.getMetrics();
+        Runnable export = () -> {
+            try {
+                metrics.writeJson(file);
+            } catch (IOException ex) {
+                System.err.println("Cannot write metrics (" + ex.getMessage() + ").");
             }
-        } catch (Exception e) {
-            return;
-        }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(export, "dns-metrics-final"));
     }
 
     /**
-     * Handles resolving cname queries
-     */
-    public static void handleCnameQuery(DNSNode node, DNSResponse dnsResponse) {
-        ResourceRecord cnameRR = dnsResponse.getAnswerRecords().get(0);
-        if (cnameRR.getType() == RecordType.CNAME) {
-            Set<ResourceRecord> answerRecords = getResults(new DNSNode(cnameRR.getTextResult(), node.getType()), ++globalIndirectionLevel);
-            // Cache results
-            for (ResourceRecord answerRecord : answerRecords) {
-                if (answerRecord.getType() == RecordType.A || answerRecord.getType() == RecordType.AAAA) {
-                    cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), answerRecord.getTTL(),
-                            answerRecord.getInetResult()));
-                } else {
-                    cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), answerRecord.getTTL(),
-                            answerRecord.getTextResult()));
-                }
-            }
-        }
-    }
-    
-    /**
-     * Handles resolving additional name server queries
+     * Starts serving DNS queries from local clients, over UDP and TCP, answering them with
+     * the cache and the resolver. Only the clients allowed by the dnslookup.allowedClients
+     * property are answered, by default those on the loopback networks.
+     *
+     * @param port    Port to listen on.
+     * @param address Local address (in numeric form) to listen on, or null for the loopback address.
+     * @return The running server.
+     * @throws IOException              If the address cannot be bound.
+     * @throws IllegalArgumentException If the address or the list of allowed clients is not valid.
      */
-    private static void handleNameServerQuery(DNSNode node, DNSResponse dnsResponse) {
-        for (ResourceRecord nextNameServer : dnsResponse.getAuthorityRecords()) {
-            // No additional information, query name server for next IP
-            if (dnsResponse.getAdditionalRecords().isEmpty()) {
-                Set<ResourceRecord> results = getResults(new DNSNode(nextNameServer.getTextResult(), RecordType.A), globalIndirectionLevel);
-                for (ResourceRecord resourceRecord : results) {
-                    if (resourceRecord.getHostName().equals(nextNameServer.getTextResult())
-                            && (resourceRecord.getType() == RecordType.A || resourceRecord.getType() == RecordType.AAAA)
-                            && resourceRecord.getInetResult() != null) {
-                        retrieveResultsFromServer(node, resourceRecord.getInetResult());
-                        return;
-                    }
-                }
-            }
-            // Additional information contains IP, match domain name to find next IP to
-            // query
-            for (ResourceRecord additionalRecord : dnsResponse.getAdditionalRecords()) {
-                if (additionalRecord.getHostName().equals(nextNameServer.getTextResult())
-                        && additionalRecord.getType() == RecordType.A) {
-                    retrieveResultsFromServer(node, additionalRecord.getInetResult());
-                    return;
-                }
-            }
-        }
+    public static DNSForwardingServer startServer(int port, String address) throws IOException {
+        InetAddress localAddress = address == null ? InetAddress.getLoopbackAddress() : parseAddress(address);
+        forwardingServer = new DNSForwardingServer(new InetSocketAddress(localAddress, port),
+                Runtime.getRuntime().availableProcessors(), ClientAccessList.getDefault(), resolver);
+        System.out.println("Listening for DNS queries on " + forwardingServer.getAddress() + ".");
+        return forwardingServer;
     }
 
-    /**
-     * Performs a DNS query with given node and server IP
-     * 
-     * @return a DSNResponse object
-     */
-    private static DNSResponse performQuery(DNSNode node, InetAddress server) throws Exception {
-        byte[] responseBuffer = new byte[1024];
-        DNSQuery dnsQuery = encodeQuery(node, generateQueryID(), server);
-        DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+    private static InetAddress parseAddress(String address) {
+        // Only numeric addresses, so that a mistyped address is not looked up as a host name.
+        if (!address.contains(":") && !address.matches("[0-9.]+"))
+            throw new IllegalArgumentException("invalid listen address " + address);
         try {
-            sendQuery(dnsQuery);
-            socket.receive(responsePacket);
-        } catch (SocketTimeoutException e) {
-                sendQuery(dnsQuery);
-                socket.receive(responsePacket);
-        }
-
-        DNSResponse dnsResponse = readDNSResponse(responseBuffer);
-        if (verboseTracing) {
-            printDNSResponse(dnsResponse);
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("invalid listen address " + address);
         }
-        checkRCodeErrors(dnsResponse);
-
-        return dnsResponse;
     }
 
     /**
-     * If verboseTracing is true then print out details of the query. 
-     * Creates a DatagramPacket with the information from the DNSQuery object and 
-     * sends it through the socket.
-     *
-     * @param dnsQuery a DNSQuery object 
+     * Stops serving DNS queries from local clients, if a server is running.
      */
-    private static void sendQuery(DNSQuery dnsQuery) throws IOException {
-        if (verboseTracing) {
-            System.out.println("\n\n" + "Query ID     " + dnsQuery.getQueryID() + " " + dnsQuery.getDomainName() + "  "
-                    + dnsQuery.getRecordType().name() + " --> " + dnsQuery.getIpAddress().getHostAddress());
+    private static void stopServer() throws IOException {
+        if (forwardingServer != null) {
+            forwardingServer.close();
+            forwardingServer = null;
         }
-
-        DatagramPacket queryPacket = new DatagramPacket(dnsQuery.getDnsRequest(), dnsQuery.getDnsRequest().length,
-                dnsQuery.getIpAddress(), DEFAULT_DNS_PORT);
-
-        socket.send(queryPacket);
     }
 
     /**
-     * Generates a random queryID that ranges from 0 to 65535
-     *
-     * @return returns a queryID 
-     */
-    private static int generateQueryID() {
-        return random.nextInt(UPPER_QUERY_ID_BOUND + 1);
-    }
-
-    /**
-     * Creates a encode query as a byte array given the node and queryID
-     * for asking questions to the DNS server.
-     *
-     * @param node   Host name and record type to be used for the query.
-     * @param queryID query ID for this encoded query.
+     * Finds all results for a host name and type and prints them on the standard output.
      *
-     * @return encoded query as a byte array
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
      */
-    private static DNSQuery encodeQuery(DNSNode node, int queryID, InetAddress server) throws IOException {
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        DataOutputStream outputStream = new DataOutputStream(byteStream);
-
-        // Header Section
-        // Query ID
-        outputStream.writeShort(queryID);
-        // QR OpCode AA TC RD RA Z R CODE (Query parameters)
-        outputStream.writeShort(0x0000);
-        // QDCOUNT
-        outputStream.writeShort(0x0001);
-        // ANCOUNT
-        outputStream.writeShort(0x0000);
-        // NSCOUNT
-        outputStream.writeShort(0x0000);
-        // ARCOUNT
-        outputStream.writeShort(0x0000);
-
-        // Question Section
-        // process host information into query
-        String qName = node.getHostName();
-        String[] domainParts = qName.split("\\.");
-        for (String part : domainParts) {
-            byte[] domainBytes = part.getBytes("UTF-8");
-            outputStream.writeByte(domainBytes.length);
-            outputStream.write(domainBytes);
-        }
-        // end of qName add 00
-        outputStream.writeByte(0x00);
-        // QTYPE get record type from node
-        outputStream.writeShort(node.getType().getCode());
-        // QCLASS
-        outputStream.writeShort(0x0001);
-
-        return new DNSQuery(queryID, qName, server, node.getType(), byteStream.toByteArray());
+    private static void findAndPrintResults(String hostName, RecordType type) {
+        DNSNode node = new DNSNode(hostName, type);
+        printResults(node, resolver.getResults(node));
     }
 
     /**
-     * Reads the DNS response given a byte array of the response
-     * decodes the answers, authorityRR and additionalRR and puts 
-     * them in cache 
+     * Reads host names from a file, one per line, resolves them all concurrently and prints
+     * the results as each name is resolved, followed by the overall throughput.
      *
-     * @param response DNS response as a byte array 
-     * @return queryID of the response as an int
-     */
-    private static DNSResponse readDNSResponse(byte[] response) throws IOException {
-        DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(response));
-        // decode header
-        int queryID = inStream.readUnsignedShort();
-        short flags = inStream.readShort();
-        boolean authoritative = (flags & 0x400) != 0; // check AA bit for if authoritative response
-        short questions = inStream.readShort();
-        short answers = inStream.readShort();
-        short authorityRR = inStream.readShort();
-        short additionalRR = inStream.readShort();
-        int rCode = flags & 0b1111;     
-
-        DNSResponse dnsResponse = new DNSResponse(queryID, authoritative, rCode);
-
-        for (int i = 0; i < questions; i++) {
-            readQuestion(inStream, response);
-        }
-
-        for (int i = 0; i < answers; i++) {
-            ResourceRecord answer = readResourceRecord(inStream, response);
-            dnsResponse.addAnswerRecord(answer);
-            cache.addResult(answer);
-        }
-
-        for (int i = 0; i < authorityRR; i++) {
-            ResourceRecord authority = readResourceRecord(inStream, response);
-            dnsResponse.addAuthorityRecord(authority);
-            cache.addResult(authority);
-        }
-
-        for (int i = 0; i < additionalRR; i++) {
-            ResourceRecord additional = readResourceRecord(inStream, response);
-            dnsResponse.addAdditionalRecord(additional);
-            cache.addResult(additional);
-        }
-        return dnsResponse;
-    }
-
-    /**
-     * Decodes the Question from a DNS response
-     * 
-     * @param inputStream DataInputStream of the response reader
-     * @param response DNS response as a byte array 
-     */
-    private static void readQuestion(DataInputStream inputStream, byte[] response) throws IOException {
-        String domain = readMessage(inputStream, response);
-        int qtype = inputStream.readUnsignedShort();
-        int qclass = inputStream.readUnsignedShort();
-    }
-
-    /**
-     * Decodes QNAME, NAME, RData while handling pointers 
-     * 
-     * @param inputStream DataInputStream of the response reader
-     * @param response DNS response as a byte array
-     * 
-     * @return String of the domain name
+     * @param fileName    Name of the file with the host names. Blank lines and anything after
+     *                    a comment character are ignored.
+     * @param type        Record type for search.
+     * @param parallelism Maximum number of names resolved at the same time.
      */
-    private static String readMessage(DataInputStream inputStream, byte[] response) throws IOException {
-        DataInputStream tempInputStream = inputStream;
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutPutStream = new DataOutputStream(byteArrayOutputStream);
-
-        while (true) {
-            int byteValue = tempInputStream.readUnsignedByte();
-            if (byteValue == 0) {
-                break;
-            }
-
-            if ((byteValue >> 6) == 0b11) { // first two bits are ones indicates pointer
-                int offset = ((byteValue & 0b111111) << 8) + tempInputStream.readUnsignedByte(); // next 14 bits is the offset
-                tempInputStream = new DataInputStream(
-                        new ByteArrayInputStream(Arrays.copyOfRange(response, offset, response.length)));
-            } else {
-                while (byteValue-- > 0) {
-                    dataOutPutStream.writeByte(tempInputStream.readUnsignedByte());
-                }
-                dataOutPutStream.writeByte(ASCII_PERIOD);
+    private static void batchFindAndPrintResults(String fileName, RecordType type, int parallelism) {
+        List<String> hostNames = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                line = line.split("#", 2)[0].trim();
+                if (!line.isEmpty())
+                    hostNames.add(line.split("\\s+")[0]);
             }
+        } catch (IOException e) {
+            System.err.println("Cannot read batch file (" + e.getMessage() + ").");
+            return;
         }
 
-        String domain = byteArrayOutputStream.toString();
-        if (domain.length() > 0) {
-            domain = domain.substring(0, domain.length() - 1); // remove extra period added at the end
-        }
-        return domain;
-    }
-
-    /**
-     * Decodes the Response Record and caches the relevant information 
-     * 
-     * @param inputStream DataInputStream of the response reader
-     * @param response DNS response as a byte array 
-     * 
-     * @return returns a ResourceRecord
-     */
-    private static ResourceRecord readResourceRecord(DataInputStream inputStream, byte[] response) throws IOException {
-        ResourceRecord resourceRecord;
-
-        String domain = readMessage(inputStream, response);
-        int typeField = inputStream.readShort();
-        int classField = inputStream.readShort();
-        int ttl = inputStream.readInt();
-        int rdLength = inputStream.readShort();
-
-        if (typeField == RecordType.A.getCode() || typeField == RecordType.AAAA.getCode()) {
-            byte[] addr = new byte[rdLength];
-            for (int i = 0; i < rdLength; i++) {
-                addr[i] = inputStream.readByte();
+        long start = System.nanoTime();
+        resolver.resolveBatch(hostNames, type, parallelism, (node, results) -> {
+            synchronized (System.out) {
+                printResults(node, results);
             }
-            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, InetAddress.getByAddress(addr));
-        } else if (typeField == RecordType.SOA.getCode()) {
-            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, "----");
-        } else { // typeField == RecordType.NS.getCode()
-            String result = readMessage(inputStream, response);
-            resourceRecord = new ResourceRecord(domain, RecordType.getByCode(typeField), ttl, result);
-        }
-        return resourceRecord;
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Resolved %d names in %.3f s (%.1f names/s)\n", hostNames.size(), seconds,
+                hostNames.size() / seconds);
     }
 
     /**
@@ -511,60 +448,4 @@ public class DNSLookupService {
                     node.getType(), record.getTTL(), record.getTextResult());
         }
     }
-
-    /**
-     * Prints out the DNS Response.
-     *
-     * @param dnsResponse 
-     */
-    private static void printDNSResponse(DNSResponse dnsResponse) {
-        List<ResourceRecord> answers = dnsResponse.getAnswerRecords();
-        List<ResourceRecord> authorities = dnsResponse.getAuthorityRecords();
-        List<ResourceRecord> additional = dnsResponse.getAdditionalRecords();
-
-        System.out.println("Response ID: " + dnsResponse.getQueryID() + " Authoritative = " + dnsResponse.getAuthoritative());
-        System.out.println("  Answers (" + answers.size() + ")");
-        for (ResourceRecord record : answers) {
-            verbosePrintResourceRecord(record, record.getType().getCode());
-        }
-        System.out.println("  Nameservers (" + authorities.size() + ")");
-        for (ResourceRecord record : authorities) {
-            verbosePrintResourceRecord(record, record.getType().getCode());
-        }
-        System.out.println("  Additional Information (" + additional.size() + ")");
-        for (ResourceRecord record : additional) {
-            verbosePrintResourceRecord(record, record.getType().getCode());
-        }
-    }
-
-    /**
-     * Prints the fields for the resource record.
-     *
-     * @param record  ResourceRecord to be printed.
-     * @param rtype   Type code of the resource record.
-     */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
-    }
-
-    /**
-     * Checks for error codes within the Rcode of a DNS response. And throws a DNSException
-     * when the rcode indicates that there is an error.
-     *
-     * @param dnsResponse 
-     */
-    private static void checkRCodeErrors(DNSResponse dnsResponse) throws DNSException {
-        if (dnsResponse.getRCode() == 5) {
-            throw new DNSException("rCode == 5");
-        } else if (dnsResponse.getRCode() == 3) {
-            throw new DNSException("rCode == 3");
-        } else if (dnsResponse.getAuthoritative() && dnsResponse.getRCode() == 0
-                && dnsResponse.getAnswerRecords().size() == 0) {
-            throw new DNSException("authoritative reponse returned but there is no answer");
-        }
-    }
-}
\ No newline at end of file
+}
@@ -4,12 +4,15 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name (ignoring the case of ASCII letters) and type are
+ * considered equal.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     private String hostName;
     private RecordType type;
+    private transient String normalizedName;
+    private transient int hash;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
@@ -31,14 +34,39 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        if (type != dnsNode.type) return false;
+        return getNormalizedName().equals(dnsNode.getNormalizedName());
     }
 
+    /** The hash code is computed over the normalized name, like equals. The result is cached,
+     * since nodes are used as keys in the cache on every lookup.
+     */
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = 31 * getNormalizedName().hashCode() + type.getCode();
+            hash = result;
+        }
+        return result;
+    }
+
+    /** Returns the host name with ASCII letters in lower case. DNS names are compared without
+     * regard to the case of ASCII letters only (RFC 4343), so other characters are kept as they
+     * are. This form is used by equals, hashCode and compareTo.
+     *
+     * @return The normalized host name.
+     */
+    String getNormalizedName() {
+        String result = normalizedName;
+        if (result == null) {
+            char[] chars = hostName.toCharArray();
+            for (int i = 0; i < chars.length; i++)
+                if (chars[i] >= 'A' && chars[i] <= 'Z')
+                    chars[i] += 'a' - 'A';
+            result = new String(chars);
+            normalizedName = result;
+        }
         return result;
     }
 
@@ -49,8 +77,9 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        int result = getNormalizedName().compareTo(o.getNormalizedName());
+        if (result != 0)
+            return result;
         else
             return type.compareTo(o.type);
     }
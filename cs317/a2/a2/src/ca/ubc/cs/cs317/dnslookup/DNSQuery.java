@@ -1,6 +1,7 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class DNSQuery {
 
@@ -8,9 +9,9 @@ public class DNSQuery {
     private String domainName;
     private InetAddress ipAddress;
     private RecordType recordType;
-    private byte[] dnsRequest;
+    private ByteBuffer dnsRequest;
 
-    public DNSQuery(int queryID, String domainName, InetAddress ipAddress, RecordType recordType, byte[] dnsRequest) {
+    public DNSQuery(int queryID, String domainName, InetAddress ipAddress, RecordType recordType, ByteBuffer dnsRequest) {
         this.queryID = queryID;
         this.domainName = domainName;
         this.ipAddress = ipAddress;
@@ -34,7 +35,12 @@ public class DNSQuery {
         return recordType;
     }
 
-    public byte[] getDnsRequest() {
+    /** Returns the encoded query. The bytes of the query are those between the position and
+     * the limit of the buffer.
+     *
+     * @return Buffer holding the encoded query.
+     */
+    public ByteBuffer getDnsRequest() {
         return dnsRequest;
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Encodes DNS queries in wire format directly into a caller-provided buffer. The encoder
+ * keeps a small cache of the wire-format encoding of recently used host names, such as the
+ * zone cuts and name servers that iterative resolution queries over and over, so encoding a
+ * query for a known name is a header and a bulk copy. The cache is direct-mapped: each name
+ * has one slot, chosen by its hash, and replaces whatever name was there, so names that are
+ * used once cannot fill it for good. Names that are not cached are encoded label by label
+ * without intermediate strings or arrays.
+ *
+ * Host names are checked while they are encoded: labels must be 1 to 63 bytes long, and the
+ * whole name at most 255 bytes once encoded (RFC 1035, section 2.3.4).
+ *
+ * Unless disabled, each query carries an EDNS(0) OPT pseudo-record (RFC 6891) in its additional
+ * section, advertising the size of the UDP responses we can receive. Without it servers cap
+ * their answers at 512 bytes, and larger RRsets come back truncated and have to be requested
+ * again over TCP. The default of 1232 bytes fits in a single packet on any IPv6 path, so
+ * responses are not fragmented. The size is given with each query, as each transport has its
+ * own setting and leaves the record out for servers that do not implement EDNS.
+ */
+public class DNSQueryEncoder {
+
+    /** Maximum size of an encoded query, including the OPT record. */
+    public static final int MAX_QUERY_LENGTH = 512;
+
+    /** Advertised UDP payload size used when the dnslookup.ednsPayloadSize property is not set. */
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+
+    /** Size of a UDP response that may be received without EDNS. */
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
+    private static final int OPT_TYPE = 41;
+    private static final int HEADER_LENGTH = 12;
+
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private static final int NAME_CACHE_SIZE = 4096;
+
+    private static final AtomicReferenceArray<WireName> wireNames = new AtomicReferenceArray<>(NAME_CACHE_SIZE);
+
+    /** Checks a UDP payload size to be advertised in queries.
+     *
+     * @param size Payload size in bytes.
+     * @throws IllegalArgumentException If the size is neither 0 nor between 512 and 65535.
+     */
+    public static void checkUdpPayloadSize(int size) {
+        if (size != 0 && (size < MIN_UDP_PAYLOAD_SIZE || size > 65535))
+            throw new IllegalArgumentException("invalid UDP payload size " + size);
+    }
+
+    /** Writes a query for a node at the current position of a buffer. The position of the
+     * buffer is moved past the end of the query.
+     *
+     * @param node        Host name and record type to be used for the query.
+     * @param queryID     Query ID for this query.
+     * @param payloadSize UDP payload size advertised in the OPT record, or 0 for no OPT record.
+     * @param out         Buffer the query is written to. It must have room for MAX_QUERY_LENGTH bytes.
+     * @throws DNSException If the host name is not a valid domain name. The contents of the
+     *                      buffer are then undefined.
+     */
+    public static void encode(DNSNode node, int queryID, int payloadSize, ByteBuffer out) throws DNSException {
+        // Header Section
+        // Query ID
+        out.putShort((short) queryID);
+        // QR OpCode AA TC RD RA Z R CODE (Query parameters)
+        out.putShort((short) 0x0000);
+        // QDCOUNT
+        out.putShort((short) 0x0001);
+        // ANCOUNT
+        out.putShort((short) 0x0000);
+        // NSCOUNT
+        out.putShort((short) 0x0000);
+        // ARCOUNT
+        out.putShort((short) (payloadSize > 0 ? 0x0001 : 0x0000));
+
+        // Question Section
+        String qName = node.getHostName();
+        int slot = slotOf(qName);
+        WireName wireName = wireNames.get(slot);
+        if (wireName != null && wireName.name.equals(qName))
+            out.put(wireName.encoding);
+        else
+            encodeName(qName, slot, out);
+        // QTYPE get record type from node
+        out.putShort((short) node.getType().getCode());
+        // QCLASS
+        out.putShort((short) 0x0001);
+
+        if (payloadSize > 0) {
+            // Additional Section: OPT pseudo-record with an empty (root) owner name
+            out.put((byte) 0);
+            out.putShort((short) OPT_TYPE);
+            // CLASS holds the advertised UDP payload size
+            out.putShort((short) payloadSize);
+            // TTL holds the extended RCODE, the EDNS version (0) and the flags (no DO bit)
+            out.putInt(0);
+            // RDLENGTH, no options
+            out.putShort((short) 0x0000);
+        }
+    }
+
+    /** Returns a copy of the question section of an encoded query, so that the question echoed
+     * in a response can be compared with it. The query must have a single question.
+     *
+     * @param buffer Buffer holding the encoded query.
+     * @param start  Offset at which the query starts in the buffer.
+     * @return The encoded name, type and class of the question.
+     */
+    public static byte[] questionOf(ByteBuffer buffer, int start) {
+        int offset = start + HEADER_LENGTH;
+        while (buffer.get(offset) != 0)
+            offset += (buffer.get(offset) & 0xff) + 1;
+        byte[] question = new byte[offset + 5 - start - HEADER_LENGTH];
+        buffer.get(start + HEADER_LENGTH, question);
+        return question;
+    }
+
+    /** Writes a host name as a sequence of labels, each preceded by its length, and ending with
+     * a zero-length label. The encoding is then placed in the slot of the name cache.
+     *
+     * @param name Host name, with labels separated by periods.
+     * @param slot Slot of the name cache for the name.
+     * @param out  Buffer the name is written to.
+     * @throws DNSException If a label is empty or too long, or the name is too long.
+     */
+    private static void encodeName(String name, int slot, ByteBuffer out) throws DNSException {
+        int start = out.position();
+        int lengthPosition = out.position();
+        out.put((byte) 0);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                int length = out.position() - lengthPosition - 1;
+                // A single period is the root, whose only label is the terminating one.
+                if (length == 0 && name.length() > 1)
+                    throw new DNSException("Empty label in host name " + name);
+                if (length == 0) break;
+                out.put(lengthPosition, (byte) length);
+                lengthPosition = out.position();
+                out.put((byte) 0);
+            } else if (c < 0x80) {
+                out.put((byte) c);
+            } else {
+                // Non-ASCII names are rare; encode the rest of the label as UTF-8.
+                int end = name.indexOf('.', i);
+                if (end < 0) end = name.length();
+                byte[] label = name.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                if (label.length > MAX_LABEL_LENGTH)
+                    throw new DNSException("Label too long in host name " + name);
+                out.put(label);
+                i = end - 1;
+            }
+            if (out.position() - lengthPosition - 1 > MAX_LABEL_LENGTH)
+                throw new DNSException("Label too long in host name " + name);
+            if (out.position() - start > MAX_NAME_LENGTH)
+                throw new DNSException("Host name too long: " + name);
+        }
+        int lastLength = out.position() - lengthPosition - 1;
+        out.put(lengthPosition, (byte) lastLength);
+        if (lastLength > 0)
+            out.put((byte) 0); // end of qName add 00, unless the name ended with a period
+        if (out.position() - start > MAX_NAME_LENGTH)
+            throw new DNSException("Host name too long: " + name);
+
+        byte[] encoding = new byte[out.position() - start];
+        out.get(start, encoding);
+        wireNames.set(slot, new WireName(name, encoding));
+    }
+
+    private static int slotOf(String name) {
+        int hash = name.hashCode() * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & (NAME_CACHE_SIZE - 1);
+    }
+
+    private static class WireName {
+        private final String name;
+        private final byte[] encoding;
+
+        WireName(String name, byte[] encoding) {
+            this.name = name;
+            this.encoding = encoding;
+        }
+    }
+}
@@ -7,14 +7,22 @@ public class DNSResponse {
 
     private int queryID;
     private boolean authoritative;
+    private boolean truncated;
     private int rCode;
+    private int udpPayloadSize = 0;
+    private int ednsVersion = -1;
     private List<ResourceRecord> answerRecords = new ArrayList<>();
     private List<ResourceRecord> authorityRecords = new ArrayList<>();
     private List<ResourceRecord> additionalRecords = new ArrayList<>();
 
     public DNSResponse(int queryID, boolean authoritative, int rCode) {
+        this(queryID, authoritative, false, rCode);
+    }
+
+    public DNSResponse(int queryID, boolean authoritative, boolean truncated, int rCode) {
         this.queryID = queryID;
         this.authoritative = authoritative;
+        this.truncated = truncated;
         this.rCode = rCode;
     }
 
@@ -38,10 +46,73 @@ public class DNSResponse {
         return authoritative;
     }
 
+    /** Returns true if the TC flag was set, meaning the server could not fit the whole response
+     * in the datagram and the query should be repeated over TCP.
+     *
+     * @return true if the response is truncated, false otherwise.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
     public int getRCode() {
         return rCode;
     }
 
+    /** Records the contents of the OPT pseudo-record included in the response.
+     *
+     * @param udpPayloadSize UDP payload size the server can receive.
+     * @param ednsVersion    EDNS version implemented by the server.
+     * @param rCode          Full response code, including the extended bits from the OPT record.
+     */
+    public void setEdns(int udpPayloadSize, int ednsVersion, int rCode) {
+        this.udpPayloadSize = udpPayloadSize;
+        this.ednsVersion = ednsVersion;
+        this.rCode = rCode;
+    }
+
+    /** @return true if the response included an OPT pseudo-record, false otherwise. */
+    public boolean hasEdns() {
+        return ednsVersion >= 0;
+    }
+
+    /** @return UDP payload size advertised by the server, or 0 if the response has no OPT record. */
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /** @return EDNS version implemented by the server, or -1 if the response has no OPT record. */
+    public int getEdnsVersion() {
+        return ednsVersion;
+    }
+
+    /** Returns the TTL for which a negative answer in this response may be cached, as defined
+     * in RFC 2308: the smaller of the TTL of the SOA record in the authority section and the
+     * MINIMUM field of that record.
+     *
+     * @return The negative TTL in seconds, or -1 if the authority section has no SOA record.
+     */
+    public long getNegativeTTL() {
+        ResourceRecord record = getSoaRecord();
+        if (record == null)
+            return -1;
+        String text = record.getTextResult();
+        try {
+            long minimum = Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+            return Math.max(0, Math.min(record.getTTL(), minimum));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** @return The first SOA record in the authority section, or null if there is none. */
+    public ResourceRecord getSoaRecord() {
+        for (ResourceRecord record : authorityRecords)
+            if (record.getType() == RecordType.SOA)
+                return record;
+        return null;
+    }
+
     public List<ResourceRecord> getAnswerRecords() {
         return answerRecords;
     }    
@@ -0,0 +1,300 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Decodes DNS responses in wire format. The decoder reads every field by absolute offset
+ * directly from the buffer holding the packet, so following a compression pointer is just a
+ * change of offset, and no part of the packet is copied. The position and limit of the buffer
+ * are never changed.
+ *
+ * Compression pointers are only allowed to point backwards, to an earlier part of the packet,
+ * which guarantees that names with pointer loops are rejected instead of decoded forever.
+ *
+ * An EDNS(0) OPT pseudo-record in the additional section is not a resource record: its fields
+ * are stored in the response itself, and its extended RCODE bits are merged into the RCODE.
+ */
+public class DNSResponseDecoder {
+
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int OPT_TYPE = 41;
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_NOT_IMPLEMENTED = 4;
+    private static final String NO_TEXT_RESULT = "----";
+
+    private final ByteBuffer packet;
+    private final int start;
+    private final int end;
+    private int offset;
+
+    private DNSResponseDecoder(ByteBuffer packet) {
+        this.packet = packet;
+        this.start = packet.position();
+        this.end = packet.limit();
+        this.offset = start;
+    }
+
+    /** Decodes a DNS response. The packet is taken to be the bytes between the position and the
+     * limit of the buffer, which must use the default (big-endian) byte order.
+     *
+     * @param packet Buffer holding the response, as received from the server.
+     * @return The decoded response, with all answer, authority and additional records.
+     * @throws DNSException If the packet is truncated or malformed.
+     */
+    public static DNSResponse decode(ByteBuffer packet) throws DNSException {
+        return new DNSResponseDecoder(packet).readResponse();
+    }
+
+    /** Decodes the question of a DNS query, as sent by a stub resolver. Only the first question
+     * is decoded.
+     *
+     * @param packet Buffer holding the query, between its position and limit.
+     * @return The host name and record type being queried.
+     * @throws DNSException If the packet has no question, or is truncated or malformed.
+     */
+    public static DNSNode decodeQuestion(ByteBuffer packet) throws DNSException {
+        DNSResponseDecoder decoder = new DNSResponseDecoder(packet);
+        decoder.offset += 4; // ID and flags
+        if (decoder.readUnsignedShort() < 1)
+            throw new DNSException("query has no question");
+        decoder.offset += 6; // ANCOUNT, NSCOUNT and ARCOUNT
+        StringBuilder name = new StringBuilder();
+        decoder.offset = decoder.readName(decoder.offset, name);
+        int typeField = decoder.readUnsignedShort();
+        return new DNSNode(name.toString(), RecordType.getByCode(typeField));
+    }
+
+    /** Returns true if a response has a single question, identical to a question that was
+     * sent, except for the case of ASCII letters in the name. A response that does not echo the
+     * question it claims to answer was not sent in reply to our query, even if its query ID
+     * matches, and must be ignored.
+     *
+     * @param packet   Buffer holding the response, between its position and limit.
+     * @param question Question section of the query, as returned by DNSQueryEncoder.questionOf.
+     * @return true if the response echoes the question, false otherwise.
+     */
+    public static boolean hasQuestion(ByteBuffer packet, byte[] question) {
+        int start = packet.position() + 12;
+        if (packet.remaining() < 12 + question.length || packet.getShort(packet.position() + 4) != 1)
+            return false;
+        int nameLength = question.length - 4;
+        for (int i = 0; i < question.length; i++) {
+            byte received = packet.get(start + i);
+            if (received != question[i] && (i >= nameLength || toLowerCase(received) != toLowerCase(question[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns true if a response is a FORMERR or NOTIMP error without a question section,
+     * which servers that reject a query as malformed may send instead of echoing the question.
+     * Such a response is accepted in place of one that echoes the question.
+     *
+     * @param packet Buffer holding the response, between its position and limit.
+     * @return true if the response is an error without a question.
+     */
+    public static boolean isQuestionlessError(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.remaining() < 12 || packet.getShort(start + 4) != 0) return false;
+        int rCode = packet.get(start + 3) & 0xf;
+        return rCode == RCODE_FORMAT_ERROR || rCode == RCODE_NOT_IMPLEMENTED;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private DNSResponse readResponse() throws DNSException {
+        int queryID = readUnsignedShort();
+        int flags = readUnsignedShort();
+        boolean authoritative = (flags & 0x400) != 0; // check AA bit for if authoritative response
+        boolean truncated = (flags & 0x200) != 0; // TC bit, response must be retried over TCP
+        int questions = readUnsignedShort();
+        int answers = readUnsignedShort();
+        int authorityRR = readUnsignedShort();
+        int additionalRR = readUnsignedShort();
+        int rCode = flags & 0b1111;
+
+        DNSResponse dnsResponse = new DNSResponse(queryID, authoritative, truncated, rCode);
+
+        for (int i = 0; i < questions; i++) {
+            offset = skipName(offset);
+            offset += 4; // QTYPE and QCLASS
+        }
+        for (int i = 0; i < answers; i++)
+            dnsResponse.addAnswerRecord(readResourceRecord());
+        for (int i = 0; i < authorityRR; i++)
+            dnsResponse.addAuthorityRecord(readResourceRecord());
+        for (int i = 0; i < additionalRR; i++) {
+            if (isOptRecord())
+                readOptRecord(dnsResponse);
+            else
+                dnsResponse.addAdditionalRecord(readResourceRecord());
+        }
+        return dnsResponse;
+    }
+
+    /** Decodes a resource record starting at the current offset, and moves the offset past the
+     * end of its RDATA, regardless of how much of the RDATA is actually used.
+     *
+     * @return The decoded resource record.
+     */
+    private ResourceRecord readResourceRecord() throws DNSException {
+        StringBuilder name = new StringBuilder();
+        offset = readName(offset, name);
+        int typeField = readUnsignedShort();
+        readUnsignedShort(); // CLASS
+        long ttl = Math.max(0, readInt());
+        int rdLength = readUnsignedShort();
+        int rdStart = offset;
+        int rdEnd = rdStart + rdLength;
+        checkBounds(rdEnd);
+
+        RecordType type = RecordType.getByCode(typeField);
+        ResourceRecord resourceRecord;
+        if (type == RecordType.A || type == RecordType.AAAA) {
+            if (rdLength != 4 && rdLength != 16)
+                throw new DNSException("invalid address length " + rdLength);
+            byte[] addr = new byte[rdLength];
+            packet.get(rdStart, addr);
+            resourceRecord = new ResourceRecord(name.toString(), type, ttl, addr);
+        } else if (type == RecordType.NS || type == RecordType.CNAME) {
+            StringBuilder result = new StringBuilder();
+            readName(rdStart, result);
+            resourceRecord = new ResourceRecord(name.toString(), type, ttl, result.toString());
+        } else if (type == RecordType.MX) {
+            StringBuilder result = new StringBuilder();
+            readName(rdStart + 2, result); // skip PREFERENCE
+            resourceRecord = new ResourceRecord(name.toString(), type, ttl, result.toString());
+        } else if (type == RecordType.SOA) {
+            resourceRecord = new ResourceRecord(name.toString(), type, ttl, readSoaData(rdStart, rdEnd));
+        } else {
+            resourceRecord = new ResourceRecord(name.toString(), type, ttl, NO_TEXT_RESULT);
+        }
+        offset = rdEnd;
+        return resourceRecord;
+    }
+
+    /** Decodes the RDATA of an SOA record into its presentation format: the primary name
+     * server, the mailbox of the administrator, and the serial, refresh, retry, expire and
+     * minimum fields, separated by spaces.
+     *
+     * @param rdStart Absolute offset at which the RDATA starts.
+     * @param rdEnd   Absolute offset immediately after the RDATA.
+     * @return The SOA fields as text.
+     */
+    private String readSoaData(int rdStart, int rdEnd) throws DNSException {
+        StringBuilder primary = new StringBuilder();
+        StringBuilder mailbox = new StringBuilder();
+        int position = readName(readName(rdStart, primary), mailbox);
+        if (position + 20 > rdEnd)
+            throw new DNSException("SOA record too short at offset " + (rdStart - start));
+        StringBuilder result = new StringBuilder().append(primary).append(' ').append(mailbox);
+        for (int i = 0; i < 5; i++)
+            result.append(' ').append(packet.getInt(position + 4 * i) & 0xffffffffL);
+        return result.toString();
+    }
+
+    /** Checks if the record starting at the current offset is an OPT pseudo-record, which
+     * always has the root as its owner name.
+     */
+    private boolean isOptRecord() throws DNSException {
+        checkBounds(offset + 3);
+        return packet.get(offset) == 0 && (packet.getShort(offset + 1) & 0xffff) == OPT_TYPE;
+    }
+
+    /** Decodes an OPT pseudo-record starting at the current offset into the EDNS fields of the
+     * response, and moves the offset past the end of its RDATA. Options are ignored.
+     */
+    private void readOptRecord(DNSResponse dnsResponse) throws DNSException {
+        offset += 3; // root name and TYPE
+        int payloadSize = readUnsignedShort();
+        int extended = readInt();
+        int rdLength = readUnsignedShort();
+        checkBounds(offset + rdLength);
+        offset += rdLength;
+        dnsResponse.setEdns(Math.max(DNSQueryEncoder.MIN_UDP_PAYLOAD_SIZE, payloadSize), (extended >>> 16) & 0xff,
+                ((extended >>> 24) << 4) | dnsResponse.getRCode());
+    }
+
+    /** Decodes a domain name, following compression pointers. Each pointer must point to an
+     * offset before the pointer itself.
+     *
+     * @param nameOffset Absolute offset at which the name starts.
+     * @param name       Builder to which the labels are appended, separated by periods.
+     * @return The offset immediately after the name as it appears at nameOffset, that is, after
+     *         its first pointer or terminating zero.
+     */
+    private int readName(int nameOffset, StringBuilder name) throws DNSException {
+        int position = nameOffset;
+        int next = -1;
+        int length = 0;
+        while (true) {
+            int labelLength = getUnsignedByte(position);
+            if (labelLength == 0) {
+                if (next < 0) next = position + 1;
+                break;
+            }
+            if ((labelLength >> 6) == 0b11) { // first two bits are ones indicates pointer
+                int pointer = start + (((labelLength & 0b111111) << 8) | getUnsignedByte(position + 1));
+                if (next < 0) next = position + 2;
+                if (pointer >= position)
+                    throw new DNSException("compression pointer loop at offset " + (position - start));
+                position = pointer;
+                continue;
+            }
+            if ((labelLength >> 6) != 0)
+                throw new DNSException("unsupported label type at offset " + (position - start));
+            length += labelLength + 1;
+            if (length > MAX_NAME_LENGTH)
+                throw new DNSException("domain name too long at offset " + (nameOffset - start));
+            checkBounds(position + 1 + labelLength);
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 1; i <= labelLength; i++)
+                name.append((char) (packet.get(position + i) & 0xff));
+            position += labelLength + 1;
+        }
+        return next;
+    }
+
+    /** Moves past a domain name without decoding it.
+     *
+     * @param nameOffset Absolute offset at which the name starts.
+     * @return The offset immediately after the name.
+     */
+    private int skipName(int nameOffset) throws DNSException {
+        int position = nameOffset;
+        while (true) {
+            int labelLength = getUnsignedByte(position);
+            if (labelLength == 0)
+                return position + 1;
+            if ((labelLength >> 6) == 0b11)
+                return position + 2;
+            position += labelLength + 1;
+        }
+    }
+
+    private int readUnsignedShort() throws DNSException {
+        checkBounds(offset + 2);
+        int value = packet.getShort(offset) & 0xffff;
+        offset += 2;
+        return value;
+    }
+
+    private int readInt() throws DNSException {
+        checkBounds(offset + 4);
+        int value = packet.getInt(offset);
+        offset += 4;
+        return value;
+    }
+
+    private int getUnsignedByte(int position) throws DNSException {
+        checkBounds(position + 1);
+        return packet.get(position) & 0xff;
+    }
+
+    private void checkBounds(int limit) throws DNSException {
+        if (limit > end)
+            throw new DNSException("response truncated at offset " + (end - start));
+    }
+}
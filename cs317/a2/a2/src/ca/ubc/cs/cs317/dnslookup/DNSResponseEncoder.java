@@ -0,0 +1,214 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+
+/** Encodes DNS responses in wire format, for answering stub clients. Names are compressed:
+ * every name, or name suffix, that was already written to the response is replaced with a
+ * pointer to its first occurrence. If the records do not fit in the buffer, the response is
+ * cut after the last complete record and the TC (truncated) flag is set, so the client knows
+ * to retry over TCP.
+ *
+ * Negative answers carry the SOA record of the zone in their authority section, so that
+ * clients know how long they may cache them (RFC 2308, section 3).
+ *
+ * An encoder reuses its internal state between responses, so it should not be shared between
+ * threads; each thread should create its own.
+ */
+public class DNSResponseEncoder {
+
+    public static final int FLAG_QR = 0x8000;
+    public static final int FLAG_AA = 0x0400;
+    public static final int FLAG_TC = 0x0200;
+    public static final int FLAG_RD = 0x0100;
+    public static final int FLAG_RA = 0x0080;
+
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+
+    private static final int MAX_COMPRESSED_NAMES = 64;
+
+    private final String[] names = new String[MAX_COMPRESSED_NAMES];
+    private final int[] nameStarts = new int[MAX_COMPRESSED_NAMES];
+    private final int[] nameOffsets = new int[MAX_COMPRESSED_NAMES];
+    private int nameCount;
+    private int packetStart;
+
+    /** Writes a response with no authority section, like the other variant of encode.
+     *
+     * @param queryID  Query ID of the query being answered.
+     * @param flags    Flags and response code, without the QR flag, which is always set.
+     * @param question Question of the query being answered, or null to omit the question.
+     * @param answers  Records for the answer section.
+     * @param out      Buffer the response is written to.
+     */
+    public void encode(int queryID, int flags, DNSNode question, Collection<ResourceRecord> answers, ByteBuffer out) {
+        encode(queryID, flags, question, answers, Collections.emptyList(), out);
+    }
+
+    /** Writes a response at the current position of a buffer, which is moved past the end of
+     * the response. The response is limited to the space between the position and the limit
+     * of the buffer. Only records whose data can be represented (A, AAAA, NS and CNAME) are
+     * included in the answer section, and only SOA records in the authority section.
+     *
+     * @param queryID   Query ID of the query being answered.
+     * @param flags     Flags and response code, without the QR flag, which is always set.
+     * @param question  Question of the query being answered, or null to omit the question.
+     * @param answers   Records for the answer section.
+     * @param authority Records for the authority section.
+     * @param out       Buffer the response is written to.
+     */
+    public void encode(int queryID, int flags, DNSNode question, Collection<ResourceRecord> answers,
+                       Collection<ResourceRecord> authority, ByteBuffer out) {
+        nameCount = 0;
+        packetStart = out.position();
+
+        out.putShort((short) queryID);
+        out.putShort((short) (flags | FLAG_QR));
+        out.putShort((short) (question == null ? 0 : 1)); // QDCOUNT
+        out.putShort((short) 0); // ANCOUNT, updated below
+        out.putShort((short) 0); // NSCOUNT
+        out.putShort((short) 0); // ARCOUNT
+
+        if (question != null) {
+            writeName(question.getHostName(), out);
+            out.putShort((short) question.getType().getCode());
+            out.putShort((short) 1); // QCLASS
+        }
+
+        int answerCount = writeSection(answers, false, flags, out);
+        out.putShort(packetStart + 6, (short) answerCount);
+        if (!isTruncated(out)) {
+            int authorityCount = writeSection(authority, true, flags, out);
+            out.putShort(packetStart + 8, (short) authorityCount);
+        }
+    }
+
+    /** Writes the records of a section that can be represented, stopping at the first one
+     * that does not fit, in which case the TC flag is set.
+     *
+     * @return The number of records written.
+     */
+    private int writeSection(Collection<ResourceRecord> records, boolean authority, int flags, ByteBuffer out) {
+        int count = 0;
+        for (ResourceRecord record : records) {
+            if (authority ? record.getType() != RecordType.SOA : !isEncodable(record)) continue;
+            int recordStart = out.position();
+            int savedNameCount = nameCount;
+            try {
+                writeRecord(record, out);
+                count++;
+            } catch (BufferOverflowException e) {
+                out.position(recordStart);
+                nameCount = savedNameCount;
+                out.putShort(packetStart + 2, (short) (flags | FLAG_QR | FLAG_TC));
+                break;
+            } catch (IllegalArgumentException e) {
+                // Data that cannot be represented, such as a malformed SOA record: leave it out.
+                out.position(recordStart);
+                nameCount = savedNameCount;
+            }
+        }
+        return count;
+    }
+
+    private boolean isTruncated(ByteBuffer out) {
+        return (out.getShort(packetStart + 2) & FLAG_TC) != 0;
+    }
+
+    private static boolean isEncodable(ResourceRecord record) {
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                return record.hasAddress();
+            case NS:
+            case CNAME:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void writeRecord(ResourceRecord record, ByteBuffer out) {
+        writeName(record.getHostName(), out);
+        out.putShort((short) record.getType().getCode());
+        out.putShort((short) 1); // CLASS
+        out.putInt((int) Math.max(0, record.getTTL()));
+        int lengthPosition = out.position();
+        out.putShort((short) 0); // RDLENGTH, updated below
+        if (record.getType() == RecordType.A || record.getType() == RecordType.AAAA) {
+            out.put(record.getAddress());
+        } else if (record.getType() == RecordType.SOA) {
+            writeSoaData(record.getTextResult(), out);
+        } else {
+            writeName(record.getTextResult(), out);
+        }
+        out.putShort(lengthPosition, (short) (out.position() - lengthPosition - 2));
+    }
+
+    /** Writes the RDATA of an SOA record from its presentation format, as produced by
+     * DNSResponseDecoder: the primary name server, the mailbox of the administrator, and the
+     * serial, refresh, retry, expire and minimum fields, separated by spaces.
+     *
+     * @throws IllegalArgumentException If the text does not have the seven SOA fields.
+     */
+    private void writeSoaData(String text, ByteBuffer out) {
+        String[] fields = text.split(" ");
+        if (fields.length != 7)
+            throw new IllegalArgumentException("invalid SOA data " + text);
+        int[] values = new int[5];
+        for (int i = 0; i < 5; i++)
+            values[i] = (int) Long.parseLong(fields[i + 2]);
+        writeName(fields[0], out);
+        writeName(fields[1], out);
+        for (int value : values)
+            out.putInt(value);
+    }
+
+    /** Writes a domain name, replacing its longest suffix already present in the response with
+     * a compression pointer.
+     *
+     * @param name Domain name, with labels separated by periods.
+     * @param out  Buffer the name is written to.
+     */
+    private void writeName(String name, ByteBuffer out) {
+        int start = 0;
+        while (start < name.length()) {
+            int pointer = findSuffix(name, start);
+            if (pointer >= 0) {
+                out.putShort((short) (0xc000 | pointer));
+                return;
+            }
+            int offset = out.position() - packetStart;
+            if (nameCount < MAX_COMPRESSED_NAMES && offset < 0x4000) {
+                names[nameCount] = name;
+                nameStarts[nameCount] = start;
+                nameOffsets[nameCount] = offset;
+                nameCount++;
+            }
+            int end = name.indexOf('.', start);
+            if (end < 0) end = name.length();
+            out.put((byte) (end - start));
+            for (int i = start; i < end; i++)
+                out.put((byte) name.charAt(i));
+            start = end + 1;
+        }
+        out.put((byte) 0);
+    }
+
+    private int findSuffix(String name, int start) {
+        int length = name.length() - start;
+        for (int i = 0; i < nameCount; i++) {
+            String written = names[i];
+            int writtenStart = nameStarts[i];
+            if (written.length() - writtenStart == length && name.regionMatches(true, start, written, writtenStart, length))
+                return nameOffsets[i];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Finds the closest enclosing zone cut for a host name among the delegations held in the DNS
+ * cache. A zone cut is usable if the cache has NS records for the zone and an A record for at
+ * least one of those name servers. Starting iterative resolution at the deepest usable zone cut
+ * skips the queries to the root and TLD servers whose referrals are already cached.
+ *
+ * The resolver only caches NS records and glue that are within the zone of the server that
+ * sent them, so a delegation found here was given by a server with authority over it.
+ */
+public class DelegationIndex {
+
+    private final DNSCache cache;
+
+    public DelegationIndex(DNSCache cache) {
+        this.cache = cache;
+    }
+
+    /** Returns the deepest cached zone that encloses a host name, with the addresses of its
+     * name servers. The host name itself is considered first, then each of its parent domains
+     * in turn. The root zone is never returned, since its servers are configured separately.
+     *
+     * @param hostName Fully qualified domain name being resolved.
+     * @return The closest cached zone, or null if no enclosing zone has usable cached name
+     *         servers.
+     */
+    public Delegation findClosestDelegation(String hostName) {
+        String zone = hostName;
+        while (!zone.isEmpty()) {
+            List<InetAddress> servers = findServers(zone);
+            if (!servers.isEmpty())
+                return new Delegation(zone, servers);
+            int period = zone.indexOf('.');
+            zone = period < 0 ? "" : zone.substring(period + 1);
+        }
+        return null;
+    }
+
+    /** Returns true if a host name is a zone, or a name within it.
+     *
+     * @param hostName Host name to check.
+     * @param zone     Name of the zone, or an empty string for the root zone.
+     * @return true if the host name is at or below the zone, ignoring the case of ASCII letters.
+     */
+    public static boolean isInZone(String hostName, String zone) {
+        if (zone.isEmpty())
+            return true;
+        int start = hostName.length() - zone.length();
+        if (start < 0 || start > 0 && hostName.charAt(start - 1) != '.')
+            return false;
+        for (int i = 0; i < zone.length(); i++)
+            if (toLowerCase(hostName.charAt(start + i)) != toLowerCase(zone.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /** Returns the addresses of the name servers for a zone that are held in the cache. The
+     * cache is only peeked at, so probing zones does not count as cache hits or misses, nor make
+     * delegation records look popular to the eviction policy.
+     *
+     * @param zone Name of the zone.
+     * @return The cached addresses of the zone's name servers, possibly empty.
+     */
+    private List<InetAddress> findServers(String zone) {
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord nameServer : cache.peek(new DNSNode(zone, RecordType.NS))) {
+            for (ResourceRecord address : cache.peek(new DNSNode(nameServer.getTextResult(), RecordType.A))) {
+                if (address.hasAddress())
+                    servers.add(address.getInetResult());
+            }
+        }
+        return servers;
+    }
+
+    /** A zone and the addresses of the name servers it is delegated to. */
+    public static final class Delegation {
+        private final String zone;
+        private final List<InetAddress> servers;
+
+        public Delegation(String zone, List<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = servers;
+        }
+
+        /** @return The name of the zone, or an empty string for the root zone. */
+        public String getZone() {
+            return zone;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+    }
+}
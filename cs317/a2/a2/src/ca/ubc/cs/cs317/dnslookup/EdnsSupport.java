@@ -0,0 +1,74 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** EDNS(0) settings shared by the UDP and TCP transports of a resolver: the UDP payload size
+ * advertised in the OPT record of queries, and the servers known not to implement EDNS, which
+ * are sent queries without an OPT record. Sharing them means that a server found to reject
+ * EDNS over one transport is not sent an OPT record over the other one either.
+ *
+ * A server is taken not to implement EDNS if it answers a query carrying an OPT record with
+ * FORMERR or NOTIMP and no OPT record of its own (RFC 6891, section 7).
+ */
+public class EdnsSupport {
+
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_NOT_IMPLEMENTED = 4;
+
+    private final Set<InetAddress> unsupported = ConcurrentHashMap.newKeySet();
+    private volatile int udpPayloadSize;
+
+    /** Creates settings with the payload size given by the system property
+     * dnslookup.ednsPayloadSize (1232 bytes by default), and no server known to reject EDNS.
+     *
+     * @throws IllegalArgumentException If the property is not a valid payload size.
+     */
+    public EdnsSupport() {
+        int size = Integer.getInteger("dnslookup.ednsPayloadSize", DNSQueryEncoder.DEFAULT_UDP_PAYLOAD_SIZE);
+        DNSQueryEncoder.checkUdpPayloadSize(size);
+        this.udpPayloadSize = size;
+    }
+
+    /** Sets the UDP payload size advertised in the OPT record of queries sent from now on.
+     *
+     * @param size Payload size in bytes, between 512 and 65535, or 0 to send queries without
+     *             an OPT record.
+     */
+    public void setUdpPayloadSize(int size) {
+        DNSQueryEncoder.checkUdpPayloadSize(size);
+        this.udpPayloadSize = size;
+    }
+
+    /** @return The UDP payload size advertised in queries, or 0 if EDNS is disabled. */
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /** Returns the payload size to advertise in a query to a server.
+     *
+     * @param server Address of the server.
+     * @return The advertised payload size, or 0 if the query must not carry an OPT record.
+     */
+    public int payloadSizeFor(InetAddress server) {
+        return unsupported.contains(server) ? 0 : udpPayloadSize;
+    }
+
+    /** Checks the response to a query that carried an OPT record, and if it shows that the
+     * server does not implement EDNS, remembers it so that later queries to the server leave
+     * the OPT record out.
+     *
+     * @param server   Address of the server.
+     * @param response Response of the server.
+     * @return true if the server rejected the OPT record, and the query should be sent again
+     *         without one.
+     */
+    public boolean checkRejected(InetAddress server, DNSResponse response) {
+        if (response.hasEdns()
+                || (response.getRCode() != RCODE_FORMAT_ERROR && response.getRCode() != RCODE_NOT_IMPLEMENTED))
+            return false;
+        unsupported.add(server);
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** An eviction policy decides which node is removed from the DNS cache when the cache grows
+ * beyond its limits. The cache notifies the policy whenever a node is added, read or removed,
+ * and asks it for a victim whenever it needs to free space. Reads may be reported late and in
+ * batches, and some may not be reported at all when the cache is busy. Implementations must be
+ * safe for use by multiple threads.
+ */
+public interface EvictionPolicy {
+
+    /** Called when a node is added to the cache.
+     *
+     * @param node Node that was added.
+     */
+    void recordInsertion(DNSNode node);
+
+    /** Called when cached results for a node are returned to a caller.
+     *
+     * @param node Node that was read.
+     */
+    void recordAccess(DNSNode node);
+
+    /** Called when a node is removed from the cache, either because all its records expired or
+     * because it was evicted.
+     *
+     * @param node Node that was removed.
+     */
+    void recordRemoval(DNSNode node);
+
+    /** Selects the next node to be evicted. The node is not removed from the policy until
+     * recordRemoval is called for it.
+     *
+     * @return The node to be evicted, or null if the policy is not tracking any node.
+     */
+    DNSNode selectVictim();
+}
@@ -0,0 +1,109 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/** A hashed timing wheel that tracks when cached records expire. The wheel has one slot per
+ * second, and a record is placed in the slot for the second in which it expires. Records with
+ * a TTL longer than the wheel span share slots with records expiring earlier, and are simply
+ * kept in their slot until the wheel comes around to them in the right second.
+ *
+ * A record may be kept for a grace period after it expires, in which case it is placed in the
+ * slot for the second in which the grace period ends instead. Records that are no longer
+ * cached, because they were replaced or pruned in the meantime, are handed over as soon as the
+ * wheel passes their slot, so that they are not kept alive until the end of their grace period.
+ *
+ * Scheduling a record only locks the slot it is placed in. A background thread advances the
+ * wheel once a second and hands every record whose grace period ended to a consumer, until
+ * the wheel is stopped.
+ */
+class ExpiryWheel {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final List<List<ResourceRecord>> slots = new ArrayList<>(WHEEL_SIZE);
+    private final Consumer<ResourceRecord> onExpiry;
+    private final Predicate<ResourceRecord> isCached;
+    private final long graceMillis;
+    private final Thread sweeper;
+    private long currentSecond;
+
+    /** Creates a timing wheel and starts the background thread that advances it.
+     *
+     * @param onExpiry    Action to be performed for each record once its grace period ended.
+     * @param isCached    Returns false for records that are no longer cached, which are handed
+     *                    to onExpiry without waiting for their grace period to end.
+     * @param graceMillis Time records are kept after they expire, in milliseconds.
+     */
+    ExpiryWheel(Consumer<ResourceRecord> onExpiry, Predicate<ResourceRecord> isCached, long graceMillis) {
+        this.onExpiry = onExpiry;
+        this.isCached = isCached;
+        this.graceMillis = graceMillis;
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            slots.add(new ArrayList<>());
+        this.currentSecond = DNSClock.currentTimeMillis() / 1000;
+
+        sweeper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance(DNSClock.currentTimeMillis());
+            }
+        }, "dns-cache-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /** Stops the background thread. Records still in the wheel are no longer handed over. */
+    void stop() {
+        sweeper.interrupt();
+    }
+
+    /** Adds a record to the wheel. The same record may be scheduled more than once, in which
+     * case it will be handed to the consumer once for each time it was scheduled.
+     *
+     * @param record Record to be scheduled for expiry.
+     */
+    void schedule(ResourceRecord record) {
+        List<ResourceRecord> slot = slotFor((record.getExpirationTime() + graceMillis) / 1000);
+        synchronized (slot) {
+            slot.add(record);
+        }
+    }
+
+    /** Moves the wheel forward to the specified time. Every slot for a second that has passed
+     * since the last call is visited, and the records in it whose grace period ended by then
+     * are removed from the wheel and handed to the consumer, along with the records in them that
+     * are no longer cached.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    synchronized void advance(long now) {
+        long nowSecond = now / 1000;
+        // Visit at most one full turn of the wheel, even if the sweeper was delayed longer.
+        long from = Math.max(currentSecond, nowSecond - WHEEL_SIZE + 1);
+        List<ResourceRecord> expired = new ArrayList<>();
+        for (long second = from; second <= nowSecond; second++) {
+            List<ResourceRecord> slot = slotFor(second);
+            synchronized (slot) {
+                slot.removeIf(record -> {
+                    if (record.getExpirationTime() + graceMillis > now && isCached.test(record))
+                        return false;
+                    expired.add(record);
+                    return true;
+                });
+            }
+        }
+        currentSecond = nowSecond;
+        expired.forEach(onExpiry);
+    }
+
+    private List<ResourceRecord> slotFor(long second) {
+        return slots.get((int) Math.floorMod(second, (long) WHEEL_SIZE));
+    }
+}
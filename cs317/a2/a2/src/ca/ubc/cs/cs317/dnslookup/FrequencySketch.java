@@ -0,0 +1,78 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A count-min sketch that estimates how often each node was used recently. Each node is
+ * counted in four counters, chosen by different hashes of the node, and its frequency is the
+ * smallest of those counters. Counters saturate at 15, and all counters are halved once enough
+ * events have been recorded, so that the estimate favours recent popularity.
+ *
+ * This class is not thread safe; callers must synchronize access to it.
+ */
+class FrequencySketch {
+
+    private static final int MAXIMUM_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[] counters;
+    private final int sampleSize;
+    private int samples = 0;
+
+    /** Creates a sketch sized for a given number of distinct nodes.
+     *
+     * @param expectedNodes Approximate number of nodes whose frequency will be tracked.
+     */
+    FrequencySketch(int expectedNodes) {
+        int size = Integer.highestOneBit(Math.max(16, expectedNodes - 1)) << 1;
+        this.counters = new int[size];
+        this.sampleSize = 10 * Math.max(16, expectedNodes);
+    }
+
+    /** Records one use of a node.
+     *
+     * @param node Node that was used.
+     */
+    void increment(DNSNode node) {
+        int hash = spread(node.hashCode());
+        boolean incremented = false;
+        for (int seed : SEEDS) {
+            int index = indexOf(hash, seed);
+            if (counters[index] < MAXIMUM_COUNT) {
+                counters[index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++samples >= sampleSize)
+            reset();
+    }
+
+    /** Returns the estimated number of recent uses of a node.
+     *
+     * @param node Node to be looked up.
+     * @return The estimated frequency, between 0 and 15.
+     */
+    int frequency(DNSNode node) {
+        int hash = spread(node.hashCode());
+        int frequency = MAXIMUM_COUNT;
+        for (int seed : SEEDS)
+            frequency = Math.min(frequency, counters[indexOf(hash, seed)]);
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++)
+            counters[i] >>>= 1;
+        samples /= 2;
+    }
+
+    private int indexOf(int hash, int seed) {
+        int h = (hash ^ seed) * seed;
+        h ^= h >>> 16;
+        return h & (counters.length - 1);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
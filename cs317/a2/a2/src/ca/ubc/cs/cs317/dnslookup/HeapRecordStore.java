@@ -0,0 +1,229 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/** Record store that keeps records as Java objects on the heap. Nodes are indexed in a
+ * concurrent hash map, so lookups take constant time and only contend with updates to the
+ * same hash bin.
+ *
+ * Expired records are kept for a grace period, during which they are only returned by
+ * getStale, and are then removed in the background by a timing wheel, including records for
+ * nodes that are never queried again. Each node keeps its stale records apart from its valid
+ * ones, and reads only look for expired records if a valid one may have expired since the last
+ * read, so a node with stale records costs a single comparison to read like any other. Stale
+ * records count toward the limits of the store, since they still take up memory. When the store exceeds its limits, whole nodes are
+ * evicted as selected by an eviction policy.
+ *
+ * Reads are not reported to the eviction policy as they happen, since the policy is guarded by
+ * a single lock. They are collected in a lossy read buffer instead, and handed to the policy in
+ * batches by whichever thread holds the eviction lock, so that cache hits never wait for it.
+ */
+class HeapRecordStore implements RecordStore {
+
+    private final ConcurrentMap<DNSNode, CachedRecordSet> cachedResults = new ConcurrentHashMap<>();
+    private final long staleMillis;
+    private final ExpiryWheel expiryWheel;
+
+    private volatile long maximumEntries;
+    private volatile long maximumBytes;
+    private volatile EvictionPolicy evictionPolicy;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer readBuffer = new ReadBuffer();
+
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final LongAdder evictionCount = new LongAdder();
+
+    HeapRecordStore(long maximumEntries, long maximumBytes, long staleMillis, EvictionPolicy evictionPolicy) {
+        this.staleMillis = staleMillis;
+        this.expiryWheel = new ExpiryWheel(this::expire, this::isCached, staleMillis);
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    @Override
+    public Set<ResourceRecord> get(DNSNode node) {
+        Set<ResourceRecord> results = peek(node);
+        if (!results.isEmpty() && readBuffer.offer(node))
+            drainReads();
+        return results;
+    }
+
+    @Override
+    public Set<ResourceRecord> peek(DNSNode node) {
+        CachedRecordSet results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+        long now = DNSClock.currentTimeMillis();
+        if (results.mayHaveExpired(now))
+            results.moveExpired(now, now - staleMillis);
+        return results.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(results);
+    }
+
+    @Override
+    public Set<ResourceRecord> getStale(DNSNode node) {
+        CachedRecordSet results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+        long now = DNSClock.currentTimeMillis();
+        if (results.mayHaveExpired(now))
+            results.moveExpired(now, now - staleMillis);
+        return Collections.unmodifiableSet(results.staleSince(now - staleMillis));
+    }
+
+    @Override
+    public void add(ResourceRecord record) {
+        boolean[] added = new boolean[2];
+        cachedResults.compute(record.getNode(), (node, results) -> {
+            if (results == null) {
+                results = new CachedRecordSet(this, node);
+                added[1] = true;
+            }
+            added[0] = results.put(record);
+            return results;
+        });
+        if (added[1])
+            evictionPolicy.recordInsertion(record.getNode());
+        if (added[0]) {
+            expiryWheel.schedule(record);
+            evictIfNeeded();
+        }
+    }
+
+    @Override
+    public List<DNSNode> nodes() {
+        return new ArrayList<>(cachedResults.keySet());
+    }
+
+    @Override
+    public void forEachRecord(Consumer<ResourceRecord> consumer) {
+        for (CachedRecordSet results : cachedResults.values())
+            results.forEach(consumer);
+    }
+
+    @Override
+    public void setLimits(long maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        evictIfNeeded();
+    }
+
+    /** Replaces the eviction policy. All nodes currently stored are registered with the new
+     * policy as if they had just been added.
+     *
+     * @param policy New eviction policy.
+     */
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        cachedResults.keySet().forEach(policy::recordInsertion);
+        this.evictionPolicy = policy;
+    }
+
+    @Override
+    public long getEntryCount() {
+        return entryCount.get();
+    }
+
+    @Override
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public void close() {
+        expiryWheel.stop();
+    }
+
+    /** Removes a record whose grace period ended from the store. This method is called by the
+     * expiry wheel, which also calls it early for records that are no longer cached. The node
+     * itself is removed once it has no more records, even if the record was already pruned by
+     * a read.
+     *
+     * @param record Expired record.
+     */
+    private void expire(ResourceRecord record) {
+        CachedRecordSet results = cachedResults.get(record.getNode());
+        if (results == null) return;
+        results.remove(record);
+        boolean[] removed = new boolean[1];
+        cachedResults.computeIfPresent(record.getNode(), (node, current) -> {
+            if (!current.isUnused()) return current;
+            removed[0] = true;
+            current.discard();
+            return null;
+        });
+        if (removed[0])
+            evictionPolicy.recordRemoval(record.getNode());
+    }
+
+    /** Returns true if a record scheduled on the expiry wheel is still cached, that is, if it
+     * was neither replaced nor removed since.
+     */
+    private boolean isCached(ResourceRecord record) {
+        CachedRecordSet results = cachedResults.get(record.getNode());
+        return results != null && results.holds(record);
+    }
+
+    /** Evicts nodes selected by the eviction policy until the store is within its limits. Only
+     * one thread evicts at a time; other threads that find the store over its limits while
+     * eviction is in progress return immediately.
+     */
+    private void evictIfNeeded() {
+        if (!isOverLimits() || !evictionLock.tryLock()) return;
+        try {
+            readBuffer.drainTo(evictionPolicy::recordAccess);
+            while (isOverLimits()) {
+                DNSNode victim = evictionPolicy.selectVictim();
+                if (victim == null) break;
+                CachedRecordSet evicted = cachedResults.remove(victim);
+                evictionPolicy.recordRemoval(victim);
+                if (evicted != null)
+                    evictionCount.add(evicted.discard());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Hands the buffered reads to the eviction policy, unless another thread is already
+     * draining them or evicting nodes.
+     */
+    private void drainReads() {
+        if (!evictionLock.tryLock()) return;
+        try {
+            readBuffer.drainTo(evictionPolicy::recordAccess);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean isOverLimits() {
+        return entryCount.get() > maximumEntries || byteCount.get() > maximumBytes;
+    }
+
+    /** Updates the usage counters of the store. Called by record sets when records are added
+     * or removed.
+     *
+     * @param entries Change in the number of records.
+     * @param bytes   Change in the estimated size of the records, in bytes.
+     */
+    void adjustUsage(long entries, long bytes) {
+        entryCount.addAndGet(entries);
+        byteCount.addAndGet(bytes);
+    }
+}
@@ -0,0 +1,100 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free histogram of non-negative values, such as latencies in microseconds, with
+ * log-linear buckets in the style of HdrHistogram. Values below 32 have a bucket each; above
+ * that, every power of two is split into 32 buckets of equal width, so any recorded value is
+ * known to within about 3% whatever its magnitude. Values up to 2^40 are tracked, and larger
+ * values are counted in the last bucket.
+ *
+ * Recording a value is one increment of an atomic array element and two LongAdder updates,
+ * with no allocation and no locking, so histograms can be updated from any thread.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /** Records a value. Negative values are recorded as zero.
+     *
+     * @param value Value to be recorded.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(bucketOf(clamped));
+        count.increment();
+        sum.add(clamped);
+    }
+
+    /** @return The number of values recorded. */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return The mean of the values recorded, or 0 if there are none. */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns an approximation of a percentile of the values recorded. Values recorded while
+     * this method runs may or may not be taken into account.
+     *
+     * @param percentile Percentile, between 0 and 100.
+     * @return The middle of the bucket holding the percentile, or 0 if no value was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return lowestValueOf(i) + (widthOf(i) - 1) / 2;
+        }
+        return lowestValueOf(BUCKETS - 1);
+    }
+
+    /** @return An approximation of the largest value recorded, or 0 if there are none. */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--)
+            if (counts.get(i) != 0)
+                return lowestValueOf(i) + widthOf(i) - 1;
+        return 0;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long widthOf(int bucket) {
+        return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+    }
+}
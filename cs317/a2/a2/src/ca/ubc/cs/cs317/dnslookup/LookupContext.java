@@ -0,0 +1,172 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** State of a single lookup, passed down through every step of its resolution instead of
+ * being kept in fields of the resolver, so that any number of lookups can run at the same
+ * time without affecting each other.
+ *
+ * Each lookup has a deadline and a budget of upstream queries, which cover everything done on
+ * its behalf: referrals, CNAME targets, and the addresses of name servers given without glue.
+ * Once either is used up, the lookup sends no more queries and stops waiting for responses,
+ * which bounds both its latency and the load a single pathological name can cause.
+ *
+ * Contexts are immutable, apart from the budget. Following a CNAME creates a child context one
+ * level deeper, which belongs to the same lookup and shares its deadline and budget; resolving
+ * the address of a name server without glue is part of the same lookup at the same level.
+ *
+ * Each context also holds the chain of nodes being resolved to reach it: the node the lookup
+ * started with, and every CNAME target or name server address resolved on the way. A step that
+ * needs a node already in its own chain, such as the address of a name server in a zone that
+ * can only be reached through that name server, gives up instead of waiting for itself. Other
+ * steps of the same lookup, such as the name servers resolved in parallel, have chains of their
+ * own, so they wait for each other like unrelated lookups do, unless the wait would lead back to
+ * their own chain. Since the context is passed along with the work, this holds whichever threads
+ * the steps of the lookup run on.
+ *
+ * Work started for a lookup may go on after the lookup stops waiting for it, such as the name
+ * server addresses resolved in parallel that are not needed in the end. Such work runs in a
+ * branch of the context, which is detached once the lookup no longer needs it; from then on
+ * its queries come from a small budget of its own instead of the budget of the lookup.
+ */
+final class LookupContext {
+
+    private final long lookupId;
+    private final Chain chain;
+    private final int depth;
+    private final long deadlineNanos;
+    private final Budget budget;
+
+    /** Creates the context of a new lookup.
+     *
+     * @param lookupId      ID of the lookup for tracing, or 0 if it is not traced.
+     * @param timeoutMillis Time the lookup may take, from now.
+     * @param maxQueries    Number of queries the lookup may send.
+     */
+    LookupContext(long lookupId, long timeoutMillis, int maxQueries) {
+        this(lookupId, null, 0, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis),
+                new Budget(null, maxQueries));
+    }
+
+    private LookupContext(long lookupId, Chain chain, int depth, long deadlineNanos, Budget budget) {
+        this.lookupId = lookupId;
+        this.chain = chain;
+        this.depth = depth;
+        this.deadlineNanos = deadlineNanos;
+        this.budget = budget;
+    }
+
+    /** @return The ID of the lookup for tracing, or 0 if it is not traced. */
+    long getLookupId() {
+        return lookupId;
+    }
+
+    /** @return The nodes being resolved in the chain of steps that led to this context,
+     *          innermost first. */
+    List<DNSNode> getChain() {
+        List<DNSNode> nodes = new ArrayList<>();
+        for (Chain link = chain; link != null; link = link.next)
+            nodes.add(link.node);
+        return nodes;
+    }
+
+    /** @param node Node about to be resolved.
+     *  @return The context for the steps taken to resolve the node, whose chain includes it. */
+    LookupContext resolving(DNSNode node) {
+        return new LookupContext(lookupId, new Chain(node, chain), depth, deadlineNanos, budget);
+    }
+
+    /** @return The number of CNAME records followed to reach the name being resolved. */
+    int getDepth() {
+        return depth;
+    }
+
+    /** @return The time left before the deadline, in milliseconds, rounded up; 0 if passed. */
+    long getRemainingMillis() {
+        long remaining = deadlineNanos - System.nanoTime();
+        return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+    }
+
+    /** @return true if the deadline of the lookup has passed. */
+    boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /** @return true if the lookup has sent as many queries as it may. */
+    boolean isBudgetExhausted() {
+        return budget.isExhausted();
+    }
+
+    /** Takes one query from the budget of the lookup, or of the branch once it is detached.
+     *
+     * @return true if the query may be sent, false if the budget is used up.
+     */
+    boolean tryAcquireQuery() {
+        return budget.tryAcquire();
+    }
+
+    /** @return The context for resolving the target of a CNAME found by this lookup. */
+    LookupContext followCname() {
+        return new LookupContext(lookupId, chain, depth + 1, deadlineNanos, budget);
+    }
+
+    /** Creates a branch of this context for work that may go on after the lookup stops waiting
+     * for it. Until detach is called on it, the branch shares the deadline and budget of this
+     * context.
+     *
+     * @param detachedQueries Number of queries the branch may send once detached.
+     * @return The context of the branch.
+     */
+    LookupContext branch(int detachedQueries) {
+        return new LookupContext(lookupId, chain, depth, deadlineNanos, new Budget(budget, detachedQueries));
+    }
+
+    /** Stops counting the queries of a branch towards the budget of the lookup it came from. */
+    void detach() {
+        budget.detached = true;
+    }
+
+    /** A node being resolved, linked to the nodes whose resolution led to it. Chains are
+     * immutable and share their tails, so extending one for a step costs a single link.
+     */
+    private static class Chain {
+        private final DNSNode node;
+        private final Chain next;
+
+        Chain(DNSNode node, Chain next) {
+            this.node = node;
+            this.next = next;
+        }
+    }
+
+    /** Number of queries that may still be sent. A branch draws from its parent's budget until
+     * it is detached, and from its own afterwards.
+     */
+    private static class Budget {
+        private final Budget parent;
+        private final AtomicInteger queriesLeft;
+        private volatile boolean detached = false;
+
+        Budget(Budget parent, int queries) {
+            this.parent = parent;
+            this.queriesLeft = new AtomicInteger(queries);
+        }
+
+        boolean isExhausted() {
+            if (parent != null && !detached) return parent.isExhausted();
+            return queriesLeft.get() <= 0;
+        }
+
+        boolean tryAcquire() {
+            if (parent != null && !detached) return parent.tryAcquire();
+            while (true) {
+                int left = queriesLeft.get();
+                if (left <= 0) return false;
+                if (queriesLeft.compareAndSet(left, left - 1)) return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Eviction policy that evicts the least recently used node. Nodes are kept in a linked hash
+ * map in access order, so the eldest entry of the map is always the next victim.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final Map<DNSNode, Boolean> nodes = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public synchronized void recordInsertion(DNSNode node) {
+        nodes.put(node, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void recordAccess(DNSNode node) {
+        nodes.get(node);
+    }
+
+    @Override
+    public synchronized void recordRemoval(DNSNode node) {
+        nodes.remove(node);
+    }
+
+    @Override
+    public synchronized DNSNode selectVictim() {
+        Iterator<DNSNode> iterator = nodes.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,9 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Kinds of negative answers that can be cached, as defined in RFC 2308. */
+public enum NegativeAnswer {
+    /** The name does not exist, for any record type (NXDOMAIN, RCODE 3). */
+    NAME_ERROR,
+    /** The name exists, but has no records of the type that was queried (NODATA). */
+    NO_DATA
+}
@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Caches negative answers, so that repeated lookups of names that do not exist, or that have
+ * no records of the requested type, are answered without querying servers again. A name error
+ * applies to every record type of a name, so name errors are kept by host name, while NODATA
+ * answers are kept by host name and record type.
+ *
+ * Each entry holds its expiration time and the SOA record of the zone the answer came from,
+ * which is returned to clients along with the negative answer (RFC 2308, section 3). Expired
+ * entries are ignored and removed when they are looked up; when the cache grows beyond its maximum number of entries, all expired entries
+ * are removed, followed by arbitrary live entries if that is not enough.
+ */
+class NegativeCache {
+
+    // RFC 2308 recommends not caching negative answers for longer than a few hours.
+    private static final long MAX_TTL_SECONDS = 3 * 60 * 60;
+
+    private final Map<String, Entry> nameErrors = new ConcurrentHashMap<>();
+    private final Map<DNSNode, Entry> noData = new ConcurrentHashMap<>();
+    private final long maximumEntries;
+
+    NegativeCache(long maximumEntries) {
+        this.maximumEntries = maximumEntries;
+    }
+
+    /** Records that a name does not exist.
+     *
+     * @param node Node whose host name does not exist.
+     * @param ttl  Negative TTL obtained from the SOA record of the response, in seconds.
+     * @param soa  SOA record of the response.
+     */
+    void addNameError(DNSNode node, long ttl, ResourceRecord soa) {
+        put(nameErrors, node.getNormalizedName(), ttl, soa);
+    }
+
+    /** Records that a name has no records of a type.
+     *
+     * @param node Host name and record type that has no records.
+     * @param ttl  Negative TTL obtained from the SOA record of the response, in seconds.
+     * @param soa  SOA record of the response.
+     */
+    void addNoData(DNSNode node, long ttl, ResourceRecord soa) {
+        put(noData, node, ttl, soa);
+    }
+
+    /** Returns the negative answer cached for a node, if it has not expired.
+     *
+     * @param node Host name and record type to look up.
+     * @return The cached negative answer, or null if there is none.
+     */
+    NegativeAnswer get(DNSNode node) {
+        long now = DNSClock.currentTimeMillis();
+        if (find(nameErrors, node.getNormalizedName(), now) != null)
+            return NegativeAnswer.NAME_ERROR;
+        if (find(noData, node, now) != null)
+            return NegativeAnswer.NO_DATA;
+        return null;
+    }
+
+    /** Returns the SOA record to be sent along with the negative answer cached for a node. Its
+     * TTL is the time left before the negative answer expires.
+     *
+     * @param node Host name and record type to look up.
+     * @return A copy of the SOA record of the cached negative answer, or null if there is none.
+     */
+    ResourceRecord getSoa(DNSNode node) {
+        long now = DNSClock.currentTimeMillis();
+        Entry entry = find(nameErrors, node.getNormalizedName(), now);
+        if (entry == null)
+            entry = find(noData, node, now);
+        return entry == null ? null : entry.soa.withExpirationTime(entry.expirationTime);
+    }
+
+    /** @return The number of negative answers held, including expired ones not removed yet. */
+    long getEntryCount() {
+        return nameErrors.size() + noData.size();
+    }
+
+    private <K> Entry find(Map<K, Entry> entries, K key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (entry.expirationTime > now)
+            return entry;
+        entries.remove(key, entry);
+        return null;
+    }
+
+    private <K> void put(Map<K, Entry> entries, K key, long ttl, ResourceRecord soa) {
+        if (ttl <= 0) return;
+        long now = DNSClock.currentTimeMillis();
+        Entry entry = new Entry(now + Math.min(ttl, MAX_TTL_SECONDS) * 1000, soa);
+        entries.merge(key, entry, (old, added) -> old.expirationTime > added.expirationTime ? old : added);
+        if (getEntryCount() > maximumEntries)
+            trim(now);
+    }
+
+    /** Brings the cache back within its maximum number of entries, leaving some room so that
+     * trimming is not needed again on the next insertion.
+     */
+    private synchronized void trim(long now) {
+        if (getEntryCount() <= maximumEntries) return;
+        nameErrors.values().removeIf(entry -> entry.expirationTime <= now);
+        noData.values().removeIf(entry -> entry.expirationTime <= now);
+        long target = maximumEntries - maximumEntries / 10;
+        removeArbitrary(noData, target);
+        removeArbitrary(nameErrors, target);
+    }
+
+    private void removeArbitrary(Map<?, Entry> entries, long target) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (getEntryCount() > target && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static class Entry {
+        private final long expirationTime;
+        private final ResourceRecord soa;
+
+        Entry(long expirationTime, ResourceRecord soa) {
+            this.expirationTime = expirationTime;
+            this.soa = soa;
+        }
+    }
+}
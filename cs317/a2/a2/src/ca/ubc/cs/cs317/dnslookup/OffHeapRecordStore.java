@@ -0,0 +1,746 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/** Record store that keeps records in direct memory, outside the Java heap. However many
+ * records are cached, the heap only holds a small, fixed number of objects per megabyte of
+ * records, so the garbage collector never has to trace the cache.
+ *
+ * All the records of a node are serialized together into one chunk of a slab arena. The arena
+ * is made of 1MB pages, each split into chunks of a single power-of-two size between 32 bytes
+ * and 64KB (a size class). Each page keeps a free list of its own chunks, and each size class a
+ * list of its pages that have room. A page whose chunks are all freed is released, so its memory
+ * can be used by any size class.
+ *
+ * The byte limit applies to the direct memory held by pages. Nodes are evicted until their
+ * chunks fit within the limit, and if pages are then still over it, the store compacts: the
+ * chunks of the least used pages of a size class are moved into the free chunks of its other
+ * pages, and the emptied pages are released. Memory then stays within the limit, apart from at
+ * most one partly used page per size class. A chunk starts with a header:
+ *
+ *   hash              4 bytes, hash code of the node
+ *   referenced        1 byte, set when the node is read, for CLOCK eviction
+ *   size class        1 byte
+ *   record type       2 bytes
+ *   expiration time   8 bytes, latest expiration time of the records, in milliseconds
+ *   record count      2 bytes
+ *   host name         2-byte length, followed by the name in UTF-8
+ *
+ * followed by the records, each an 8-byte expiration time, a 4-byte original TTL and a 1-byte
+ * address length (4 or 16 for an address record, 0 otherwise), then the address, or a 2-byte
+ * length followed by the text result in UTF-8.
+ *
+ * Nodes are indexed by an open-addressing hash table with linear probing, also in direct
+ * memory. Each slot is a long holding the chunk address and 24 bits of the node's hash, so
+ * most probes that do not match are rejected without reading the chunk.
+ *
+ * When the store is over its limits, nodes are evicted with the CLOCK algorithm: a hand sweeps
+ * the index, giving a second chance to nodes read since it last passed, and evicting the
+ * others. Expired records are skipped by reads and dropped when the node is next updated, and
+ * a background thread sweeps the index continuously, removing nodes whose records have all
+ * been expired for longer than the grace period.
+ *
+ * Reads run concurrently with each other, and updates are serialized by a read-write lock.
+ */
+class OffHeapRecordStore implements RecordStore {
+
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int MIN_CHUNK_SHIFT = 5;
+    private static final int MAX_CHUNK_SHIFT = 16;
+    private static final int SIZE_CLASSES = MAX_CHUNK_SHIFT - MIN_CHUNK_SHIFT + 1;
+
+    private static final int HASH_OFFSET = 0;
+    private static final int REFERENCED_OFFSET = 4;
+    private static final int SIZE_CLASS_OFFSET = 5;
+    private static final int TYPE_OFFSET = 6;
+    private static final int EXPIRATION_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int NAME_OFFSET = 18;
+    // A free chunk is marked in its size class byte, and holds the offset of the next free chunk
+    // of its page in place of the expiration time
+    private static final byte FREE_MARK = -1;
+    private static final int NEXT_FREE_OFFSET = EXPIRATION_OFFSET;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final int TAG_SHIFT = 40;
+    private static final long ADDRESS_MASK = (1L << TAG_SHIFT) - 1;
+    private static final int SWEEP_BATCH = 4096;
+    private static final long SWEEP_PERIOD_SECONDS = 60;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Pages are numbered; the number of a released page is reused by the next page allocated.
+    // For each page: its size class, live chunks, head of its free list (offset + 1, or 0 if
+    // empty), the end of the part handed out as chunks so far, and its neighbours in the list
+    // of pages of its size class that have room (-1 at either end).
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private int[] pageClasses = new int[16];
+    private int[] liveChunks = new int[16];
+    private int[] freeHeads = new int[16];
+    private int[] bumpOffsets = new int[16];
+    private int[] nextPartial = new int[16];
+    private int[] previousPartial = new int[16];
+    private int pageCount = 0;
+    private int[] releasedPages = new int[16];
+    private int releasedCount = 0;
+    private final int[] partialHeads = new int[SIZE_CLASSES];
+    private final int[] classPages = new int[SIZE_CLASSES];
+    private final long[] classChunks = new long[SIZE_CLASSES];
+
+    private LongBuffer index = allocateIndex(INITIAL_INDEX_CAPACITY);
+    private int mask = INITIAL_INDEX_CAPACITY - 1;
+    private int size = 0;
+    private int clockHand = 0;
+    private final Thread sweeper;
+    private int sweepHand = 0;
+
+    private final long staleMillis;
+    private volatile long maximumEntries;
+    private volatile long maximumBytes;
+    private volatile long entryCount = 0;
+    private volatile long byteCount = 0;
+    private volatile long evictionCount = 0;
+
+    OffHeapRecordStore(long maximumEntries, long maximumBytes, long staleMillis) {
+        this.staleMillis = staleMillis;
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        Arrays.fill(partialHeads, -1);
+
+        sweeper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sweep(DNSClock.currentTimeMillis());
+            }
+        }, "dns-offheap-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    @Override
+    public Set<ResourceRecord> get(DNSNode node) {
+        return read(node, true);
+    }
+
+    @Override
+    public Set<ResourceRecord> peek(DNSNode node) {
+        return read(node, false);
+    }
+
+    @Override
+    public Set<ResourceRecord> getStale(DNSNode node) {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(node, name);
+            if (slot < 0)
+                return Collections.emptySet();
+            long address = addressOf(index.get(slot));
+            ByteBuffer page = pageOf(address);
+            int offset = offsetOf(address);
+            long now = DNSClock.currentTimeMillis();
+            Set<ResourceRecord> results = new HashSet<>();
+            for (ResourceRecord record : decodeRecords(page, offset, node))
+                if (record.getExpirationTime() <= now && record.getExpirationTime() > now - staleMillis)
+                    results.add(record);
+            return results.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Set<ResourceRecord> read(DNSNode node, boolean markReferenced) {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(node, name);
+            if (slot < 0)
+                return Collections.emptySet();
+            long address = addressOf(index.get(slot));
+            ByteBuffer page = pageOf(address);
+            int offset = offsetOf(address);
+            long now = DNSClock.currentTimeMillis();
+            if (page.getLong(offset + EXPIRATION_OFFSET) <= now)
+                return Collections.emptySet();
+            // Racing readers all write the same value, so no stronger lock is needed.
+            if (markReferenced)
+                page.put(offset + REFERENCED_OFFSET, (byte) 1);
+            Set<ResourceRecord> results = new HashSet<>();
+            for (ResourceRecord record : decodeRecords(page, offset, node))
+                if (record.getExpirationTime() > now)
+                    results.add(record);
+            return Collections.unmodifiableSet(results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void add(ResourceRecord record) {
+        DNSNode node = record.getNode();
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            long now = DNSClock.currentTimeMillis();
+            int slot = find(node, name);
+            List<ResourceRecord> records = new ArrayList<>();
+            int oldCount = 0;
+            long oldAddress = -1;
+            boolean referenced = false;
+            if (slot >= 0) {
+                oldAddress = addressOf(index.get(slot));
+                ByteBuffer page = pageOf(oldAddress);
+                int offset = offsetOf(oldAddress);
+                referenced = page.get(offset + REFERENCED_OFFSET) != 0;
+                for (ResourceRecord existing : decodeRecords(page, offset, node)) {
+                    oldCount++;
+                    if (existing.getExpirationTime() > now)
+                        records.add(existing);
+                }
+            }
+            int existing = records.indexOf(record);
+            if (existing >= 0) {
+                if (!records.get(existing).expiresBefore(record))
+                    return;
+                records.set(existing, record);
+            } else {
+                records.add(record);
+            }
+
+            long address = write(node, name, records, referenced);
+            if (address < 0)
+                return; // too many records for one chunk; keep the node as it was
+            long tagged = tagOf(spread(node.hashCode())) | (address + 1);
+            if (slot >= 0) {
+                index.put(slot, tagged);
+                free(oldAddress);
+            } else {
+                insert(spread(node.hashCode()), tagged);
+            }
+            entryCount += records.size() - oldCount;
+            evictIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<DNSNode> nodes() {
+        List<DNSNode> nodes = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot <= mask; slot++) {
+                long entry = index.get(slot);
+                if (entry == 0) continue;
+                long address = addressOf(entry);
+                nodes.add(decodeNode(pageOf(address), offsetOf(address)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return nodes;
+    }
+
+    /** Performs an action for each record. The index is visited in batches, and the lock is
+     * released while the action runs, so slow actions such as writing a snapshot do not hold
+     * up updates. Records added or moved during the iteration may be missed or visited twice.
+     */
+    @Override
+    public void forEachRecord(Consumer<ResourceRecord> consumer) {
+        List<ResourceRecord> batch = new ArrayList<>();
+        for (int start = 0; ; start += SWEEP_BATCH) {
+            batch.clear();
+            lock.readLock().lock();
+            try {
+                if (start > mask) return;
+                int end = Math.min(start + SWEEP_BATCH, mask + 1);
+                for (int slot = start; slot < end; slot++) {
+                    long entry = index.get(slot);
+                    if (entry == 0) continue;
+                    long address = addressOf(entry);
+                    ByteBuffer page = pageOf(address);
+                    int offset = offsetOf(address);
+                    batch.addAll(decodeRecords(page, offset, decodeNode(page, offset)));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            batch.forEach(consumer);
+        }
+    }
+
+    @Override
+    public void setLimits(long maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        lock.writeLock().lock();
+        try {
+            evictIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Does nothing: the off-heap store always evicts with CLOCK, as the state other policies
+     * keep for each node would have to live on the heap.
+     */
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy) {
+    }
+
+    @Override
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /** @return The size of the chunks holding records, in bytes. The free chunks of pages in
+     *          use are not included; see getAllocatedBytes.
+     */
+    @Override
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public void close() {
+        sweeper.interrupt();
+    }
+
+    /** @return The number of bytes of direct memory allocated to pages. */
+    long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Removes nodes whose records have all been expired for longer than the grace period from
+     * the next part of the index. The whole index is visited about once every
+     * SWEEP_PERIOD_SECONDS calls, in batches, so updates are never held up for long.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    private void sweep(long now) {
+        int remaining;
+        lock.readLock().lock();
+        try {
+            remaining = (int) Math.max(SWEEP_BATCH, (mask + 1) / SWEEP_PERIOD_SECONDS);
+        } finally {
+            lock.readLock().unlock();
+        }
+        while (remaining > 0) {
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < SWEEP_BATCH && remaining > 0; i++, remaining--) {
+                    sweepHand &= mask;
+                    long entry = index.get(sweepHand);
+                    if (entry != 0) {
+                        long address = addressOf(entry);
+                        if (pageOf(address).getLong(offsetOf(address) + EXPIRATION_OFFSET) <= now - staleMillis) {
+                            removeAt(sweepHand);
+                            continue; // another node may have moved into this slot
+                        }
+                    }
+                    sweepHand++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long allocatedBytes() {
+        return (long) (pageCount - releasedCount) * PAGE_SIZE;
+    }
+
+    /** Evicts nodes with the CLOCK algorithm until their chunks are within the limits of the
+     * store, then compacts if pages still hold more memory than allowed. Must be called with
+     * the write lock held. Every node is evicted within two turns of the hand, so the number of
+     * steps is bounded even if no node can be evicted.
+     */
+    private void evictIfNeeded() {
+        evictChunks();
+        if (allocatedBytes() > maximumBytes)
+            for (int sizeClass = 0; sizeClass < SIZE_CLASSES && allocatedBytes() > maximumBytes; sizeClass++)
+                compact(sizeClass);
+    }
+
+    private void evictChunks() {
+        long steps = 2L * (mask + 1) + size;
+        while ((entryCount > maximumEntries || byteCount > maximumBytes) && size > 0 && steps-- > 0) {
+            clockHand &= mask;
+            long entry = index.get(clockHand);
+            if (entry == 0) {
+                clockHand++;
+                continue;
+            }
+            long address = addressOf(entry);
+            ByteBuffer page = pageOf(address);
+            int offset = offsetOf(address);
+            if (page.get(offset + REFERENCED_OFFSET) != 0) {
+                page.put(offset + REFERENCED_OFFSET, (byte) 0);
+                clockHand++;
+                continue;
+            }
+            evictionCount += page.getShort(offset + COUNT_OFFSET) & 0xffff;
+            removeAt(clockHand);
+        }
+    }
+
+    /** Finds the index slot of a node.
+     *
+     * @return The slot holding the node, or -1 if the node is not stored.
+     */
+    private int find(DNSNode node, byte[] name) {
+        int hash = spread(node.hashCode());
+        long tag = tagOf(hash);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = index.get(slot);
+            if (entry == 0)
+                return -1;
+            if ((entry & ~ADDRESS_MASK) == tag && matches(addressOf(entry), node, name))
+                return slot;
+        }
+    }
+
+    private boolean matches(long address, DNSNode node, byte[] name) {
+        ByteBuffer page = pageOf(address);
+        int offset = offsetOf(address);
+        if ((page.getShort(offset + TYPE_OFFSET) & 0xffff) != node.getType().getCode())
+            return false;
+        int length = page.getShort(offset + NAME_OFFSET) & 0xffff;
+        if (length != name.length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            byte stored = page.get(offset + NAME_OFFSET + 2 + i);
+            if (stored != name[i] && toLowerCase(stored) != toLowerCase(name[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /** Adds an entry to the index, growing the index first if it is too full. */
+    private void insert(int hash, long entry) {
+        if (size + 1 > (mask + 1) * MAX_LOAD_FACTOR)
+            resize();
+        int slot = hash & mask;
+        while (index.get(slot) != 0)
+            slot = (slot + 1) & mask;
+        index.put(slot, entry);
+        size++;
+    }
+
+    private void resize() {
+        LongBuffer oldIndex = index;
+        int oldCapacity = mask + 1;
+        index = allocateIndex(oldCapacity * 2);
+        mask = oldCapacity * 2 - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long entry = oldIndex.get(i);
+            if (entry == 0) continue;
+            int slot = homeOf(entry);
+            while (index.get(slot) != 0)
+                slot = (slot + 1) & mask;
+            index.put(slot, entry);
+        }
+    }
+
+    /** Removes the node in an index slot and frees its chunk. Later entries in the same probe
+     * sequence are shifted back, so lookups never need tombstones.
+     */
+    private void removeAt(int slot) {
+        long address = addressOf(index.get(slot));
+        entryCount -= pageOf(address).getShort(offsetOf(address) + COUNT_OFFSET) & 0xffff;
+        free(address);
+        size--;
+
+        int hole = slot;
+        for (int next = (slot + 1) & mask; ; next = (next + 1) & mask) {
+            long entry = index.get(next);
+            if (entry == 0) break;
+            int home = homeOf(entry);
+            // The entry can move into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+            if (!stays) {
+                index.put(hole, entry);
+                hole = next;
+            }
+        }
+        index.put(hole, 0);
+    }
+
+    private int homeOf(long entry) {
+        long address = addressOf(entry);
+        return spread(pageOf(address).getInt(offsetOf(address) + HASH_OFFSET)) & mask;
+    }
+
+    /** Serializes a node and its records into a newly allocated chunk.
+     *
+     * @return The address of the chunk, or -1 if the records do not fit in the largest chunk.
+     */
+    private long write(DNSNode node, byte[] name, List<ResourceRecord> records, boolean referenced) {
+        List<byte[]> results = new ArrayList<>(records.size());
+        int length = NAME_OFFSET + 2 + name.length;
+        long expirationTime = 0;
+        for (ResourceRecord record : records) {
+            byte[] address = record.getAddress();
+            byte[] result = address != null ? address : record.getTextResult().getBytes(StandardCharsets.UTF_8);
+            results.add(result);
+            length += 13 + (address != null ? result.length : 2 + result.length);
+            expirationTime = Math.max(expirationTime, record.getExpirationTime());
+        }
+        if (length > 1 << MAX_CHUNK_SHIFT || records.size() > 0xffff)
+            return -1;
+
+        int sizeClass = sizeClassFor(length);
+        long address = allocate(sizeClass);
+        ByteBuffer page = pageOf(address);
+        int offset = offsetOf(address);
+        page.putInt(offset + HASH_OFFSET, node.hashCode());
+        page.put(offset + REFERENCED_OFFSET, (byte) (referenced ? 1 : 0));
+        page.put(offset + SIZE_CLASS_OFFSET, (byte) sizeClass);
+        page.putShort(offset + TYPE_OFFSET, (short) node.getType().getCode());
+        page.putLong(offset + EXPIRATION_OFFSET, expirationTime);
+        page.putShort(offset + COUNT_OFFSET, (short) records.size());
+        page.putShort(offset + NAME_OFFSET, (short) name.length);
+        page.put(offset + NAME_OFFSET + 2, name);
+        int position = offset + NAME_OFFSET + 2 + name.length;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] result = results.get(i);
+            page.putLong(position, records.get(i).getExpirationTime());
+            page.putInt(position + 8, records.get(i).getOriginalTTL());
+            if (records.get(i).hasAddress()) {
+                page.put(position + 12, (byte) result.length);
+                position += 13;
+            } else {
+                page.put(position + 12, (byte) 0);
+                page.putShort(position + 13, (short) result.length);
+                position += 15;
+            }
+            page.put(position, result);
+            position += result.length;
+        }
+        return address;
+    }
+
+    private static DNSNode decodeNode(ByteBuffer page, int offset) {
+        RecordType type = RecordType.getByCode(page.getShort(offset + TYPE_OFFSET) & 0xffff);
+        byte[] name = new byte[page.getShort(offset + NAME_OFFSET) & 0xffff];
+        page.get(offset + NAME_OFFSET + 2, name);
+        return new DNSNode(new String(name, StandardCharsets.UTF_8), type);
+    }
+
+    private static List<ResourceRecord> decodeRecords(ByteBuffer page, int offset, DNSNode node) {
+        int count = page.getShort(offset + COUNT_OFFSET) & 0xffff;
+        List<ResourceRecord> records = new ArrayList<>(count);
+        int position = offset + NAME_OFFSET + 2 + (page.getShort(offset + NAME_OFFSET) & 0xffff);
+        for (int i = 0; i < count; i++) {
+            long expirationTime = page.getLong(position);
+            int originalTTL = page.getInt(position + 8);
+            int addressLength = page.get(position + 12);
+            if (addressLength != 0) {
+                byte[] address = new byte[addressLength];
+                page.get(position + 13, address);
+                records.add(new ResourceRecord(node, expirationTime, originalTTL, address));
+                position += 13 + addressLength;
+            } else {
+                byte[] text = new byte[page.getShort(position + 13) & 0xffff];
+                page.get(position + 15, text);
+                records.add(new ResourceRecord(node, expirationTime, originalTTL,
+                        new String(text, StandardCharsets.UTF_8)));
+                position += 15 + text.length;
+            }
+        }
+        return records;
+    }
+
+    private static int sizeClassFor(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(shift, MIN_CHUNK_SHIFT) - MIN_CHUNK_SHIFT;
+    }
+
+    /** Allocates a chunk of a size class, from the first page of the class that has room, or
+     * else from a new page. Within a page, freed chunks are reused before the rest of the page
+     * is carved up.
+     */
+    private long allocate(int sizeClass) {
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        int page = partialHeads[sizeClass];
+        if (page < 0)
+            page = newPage(sizeClass);
+        int offset;
+        if (freeHeads[page] != 0) {
+            offset = freeHeads[page] - 1;
+            freeHeads[page] = pages[page].getInt(offset + NEXT_FREE_OFFSET);
+        } else {
+            offset = bumpOffsets[page];
+            bumpOffsets[page] += chunkSize;
+        }
+        if (++liveChunks[page] == PAGE_SIZE / chunkSize)
+            unlinkPartial(page);
+        classChunks[sizeClass]++;
+        byteCount += chunkSize;
+        return ((long) page << PAGE_SHIFT) | offset;
+    }
+
+    /** Returns a chunk to the free list of its page, and releases the page if it is now empty. */
+    private void free(long address) {
+        int page = (int) (address >>> PAGE_SHIFT);
+        int offset = offsetOf(address);
+        int sizeClass = pageClasses[page];
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        byteCount -= chunkSize;
+        classChunks[sizeClass]--;
+        pages[page].put(offset + SIZE_CLASS_OFFSET, FREE_MARK);
+        pages[page].putInt(offset + NEXT_FREE_OFFSET, freeHeads[page]);
+        freeHeads[page] = offset + 1;
+        if (liveChunks[page]-- == PAGE_SIZE / chunkSize)
+            linkPartial(page);
+        if (liveChunks[page] == 0)
+            releasePage(page);
+    }
+
+    private int newPage(int sizeClass) {
+        int page;
+        if (releasedCount > 0) {
+            page = releasedPages[--releasedCount];
+        } else {
+            if (pageCount == pages.length) {
+                int capacity = pages.length * 2;
+                pages = Arrays.copyOf(pages, capacity);
+                pageClasses = Arrays.copyOf(pageClasses, capacity);
+                liveChunks = Arrays.copyOf(liveChunks, capacity);
+                freeHeads = Arrays.copyOf(freeHeads, capacity);
+                bumpOffsets = Arrays.copyOf(bumpOffsets, capacity);
+                nextPartial = Arrays.copyOf(nextPartial, capacity);
+                previousPartial = Arrays.copyOf(previousPartial, capacity);
+                releasedPages = Arrays.copyOf(releasedPages, capacity);
+            }
+            page = pageCount++;
+        }
+        pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE);
+        pageClasses[page] = sizeClass;
+        liveChunks[page] = 0;
+        freeHeads[page] = 0;
+        bumpOffsets[page] = 0;
+        classPages[sizeClass]++;
+        linkPartial(page);
+        return page;
+    }
+
+    /** Drops an empty page, so that the garbage collector can return its memory. */
+    private void releasePage(int page) {
+        unlinkPartial(page);
+        classPages[pageClasses[page]]--;
+        pages[page] = null;
+        releasedPages[releasedCount++] = page;
+    }
+
+    private void linkPartial(int page) {
+        int sizeClass = pageClasses[page];
+        int head = partialHeads[sizeClass];
+        nextPartial[page] = head;
+        previousPartial[page] = -1;
+        if (head >= 0)
+            previousPartial[head] = page;
+        partialHeads[sizeClass] = page;
+    }
+
+    private void unlinkPartial(int page) {
+        int next = nextPartial[page];
+        int previous = previousPartial[page];
+        if (next >= 0)
+            previousPartial[next] = previous;
+        if (previous >= 0)
+            nextPartial[previous] = next;
+        else if (partialHeads[pageClasses[page]] == page)
+            partialHeads[pageClasses[page]] = next;
+        nextPartial[page] = -1;
+        previousPartial[page] = -1;
+    }
+
+    /** Moves the chunks of the least used pages of a size class into the free chunks of its
+     * other pages, until the class holds no more pages than its chunks need.
+     */
+    private void compact(int sizeClass) {
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        int chunksPerPage = PAGE_SIZE / chunkSize;
+        while (classPages[sizeClass] > (classChunks[sizeClass] + chunksPerPage - 1) / chunksPerPage) {
+            int source = -1;
+            for (int page = partialHeads[sizeClass]; page >= 0; page = nextPartial[page])
+                if (source < 0 || liveChunks[page] < liveChunks[source])
+                    source = page;
+            // Keep the source out of the list, so its chunks are only moved to other pages.
+            unlinkPartial(source);
+            ByteBuffer page = pages[source];
+            for (int offset = 0; liveChunks[source] > 0; offset += chunkSize)
+                if (page.get(offset + SIZE_CLASS_OFFSET) != FREE_MARK)
+                    move(((long) source << PAGE_SHIFT) | offset, sizeClass);
+        }
+    }
+
+    /** Copies a chunk to a newly allocated chunk of the same size class, points its index
+     * entry at the copy, and frees the original.
+     */
+    private void move(long address, int sizeClass) {
+        ByteBuffer page = pageOf(address);
+        int offset = offsetOf(address);
+        DNSNode node = decodeNode(page, offset);
+        int slot = find(node, node.getHostName().getBytes(StandardCharsets.UTF_8));
+        long copy = allocate(sizeClass);
+        pageOf(copy).put(offsetOf(copy), page, offset, 1 << (sizeClass + MIN_CHUNK_SHIFT));
+        index.put(slot, (index.get(slot) & ~ADDRESS_MASK) | (copy + 1));
+        free(address);
+    }
+
+    private ByteBuffer pageOf(long address) {
+        return pages[(int) (address >>> PAGE_SHIFT)];
+    }
+
+    private static int offsetOf(long address) {
+        return (int) (address & (PAGE_SIZE - 1));
+    }
+
+    private static long addressOf(long entry) {
+        return (entry & ADDRESS_MASK) - 1;
+    }
+
+    private static long tagOf(int hash) {
+        return (long) (hash >>> 8) << TAG_SHIFT;
+    }
+
+    private static int spread(int hash) {
+        return hash * 0x9e3779b9;
+    }
+
+    private static LongBuffer allocateIndex(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Long.BYTES).asLongBuffer();
+    }
+}
@@ -0,0 +1,80 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/** A lossy buffer of cache reads waiting to be reported to the eviction policy, modelled after
+ * the read buffer of Caffeine. Reads are spread over several stripes, chosen by thread, so that
+ * threads reading the cache at the same time rarely touch the same counters. Each stripe is a
+ * small ring; a read is dropped if its stripe is full, or if another thread is writing to the
+ * same stripe at that moment. Losing some reads only makes the policy's view of popularity
+ * slightly less precise, while recording them never blocks.
+ *
+ * Any thread may add reads, but only one thread at a time may drain the buffer; callers must
+ * hold a lock while draining.
+ */
+class ReadBuffer {
+
+    private static final int STRIPE_SIZE = 32;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    private final Stripe[] stripes;
+
+    /** Creates a buffer with a number of stripes suited to the number of processors. */
+    ReadBuffer() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /** Records a read of a node, unless the stripe of the current thread is full or busy.
+     *
+     * @param node Node that was read.
+     * @return true if the stripe is at least half full and should be drained soon.
+     */
+    boolean offer(DNSNode node) {
+        int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return stripes[(hash ^ hash >>> 16) & (stripes.length - 1)].offer(node);
+    }
+
+    /** Hands every buffered read to a consumer, in the order they were made within each stripe.
+     *
+     * @param consumer Action to be performed for each node read.
+     */
+    void drainTo(Consumer<DNSNode> consumer) {
+        for (Stripe stripe : stripes)
+            stripe.drainTo(consumer);
+    }
+
+    private static class Stripe {
+        private final AtomicReferenceArray<DNSNode> slots = new AtomicReferenceArray<>(STRIPE_SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+        private final AtomicLong readCount = new AtomicLong();
+
+        boolean offer(DNSNode node) {
+            long head = readCount.get();
+            long tail = writeCount.get();
+            long size = tail - head;
+            if (size >= STRIPE_SIZE || !writeCount.compareAndSet(tail, tail + 1))
+                return size >= STRIPE_SIZE / 2;
+            slots.lazySet((int) tail & STRIPE_MASK, node);
+            return size + 1 >= STRIPE_SIZE / 2;
+        }
+
+        void drainTo(Consumer<DNSNode> consumer) {
+            long head = readCount.get();
+            long tail = writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) head & STRIPE_MASK;
+                DNSNode node = slots.get(index);
+                // A writer claimed the slot but has not filled it yet; leave it for the next drain.
+                if (node == null) break;
+                slots.lazySet(index, null);
+                consumer.accept(node);
+            }
+            readCount.lazySet(head);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/** Storage engine behind the DNS cache. A store maps nodes to their cached records, keeps
+ * expired records for a grace period so they can still be served if a node cannot be resolved
+ * again, removes them once that period ends, and keeps itself within a maximum number of
+ * records and an estimated memory budget by evicting whole nodes. The cache adds hit and miss accounting on
+ * top of the store, and chooses the store when it is created.
+ *
+ * Implementations must be safe for use by multiple threads.
+ */
+interface RecordStore {
+
+    /** Returns the records cached for a node that have not expired, and notes that the node
+     * was used, for the purpose of eviction.
+     *
+     * @param node Node to look up.
+     * @return A possibly empty, unmodifiable set of records.
+     */
+    Set<ResourceRecord> get(DNSNode node);
+
+    /** Returns the records cached for a node that have not expired, without affecting which
+     * nodes are evicted.
+     *
+     * @param node Node to look up.
+     * @return A possibly empty, unmodifiable set of records.
+     */
+    Set<ResourceRecord> peek(DNSNode node);
+
+    /** Returns the records cached for a node that have expired, but whose grace period has not
+     * ended yet. This does not affect which nodes are evicted.
+     *
+     * @param node Node to look up.
+     * @return A possibly empty, unmodifiable set of expired records.
+     */
+    Set<ResourceRecord> getStale(DNSNode node);
+
+    /** Adds a record. If an equivalent record is already stored, it is only replaced if the
+     * new record expires after it. Expired records of the node are discarded.
+     *
+     * @param record Record to be added. It must not have expired.
+     */
+    void add(ResourceRecord record);
+
+    /** @return The nodes currently stored, in no particular order. */
+    List<DNSNode> nodes();
+
+    /** Performs an action for each stored record, in no particular order. Records that have
+     * expired but not been removed yet may be included.
+     *
+     * @param consumer Action to be performed for each record.
+     */
+    void forEachRecord(Consumer<ResourceRecord> consumer);
+
+    /** Changes the limits of the store, evicting nodes immediately if they are exceeded.
+     *
+     * @param maximumEntries Maximum number of records.
+     * @param maximumBytes   Maximum estimated size of the records, in bytes.
+     */
+    void setLimits(long maximumEntries, long maximumBytes);
+
+    /** Replaces the policy that selects the nodes to evict. Stores with their own fixed
+     * eviction scheme ignore the policy.
+     *
+     * @param policy New eviction policy.
+     */
+    void setEvictionPolicy(EvictionPolicy policy);
+
+    /** @return The number of records currently stored. */
+    long getEntryCount();
+
+    /** @return The estimated size of the records currently stored, in bytes. */
+    long getByteCount();
+
+    /** @return The number of records evicted to keep the store within its limits. */
+    long getEvictionCount();
+
+    /** Stops the background thread that removes expired records. The store must not be used
+     * afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,931 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/** Iterative DNS resolver. Lookups start at the closest delegation already in the cache, or at
+ * the root server, and follow referrals and CNAME records until an answer is found. Everything
+ * learnt along the way is added to the cache.
+ *
+ * A resolver is safe for use by multiple threads, and any number of lookups can run on it at
+ * the same time: the state of each lookup is kept in a LookupContext passed down through its
+ * resolution, and the state shared by all lookups (cache, transports, RTT estimates, queries
+ * in flight) is thread-safe. Each lookup is bounded by a deadline and a budget of upstream
+ * queries, set with setLookupLimits. Several resolvers can run in the same program; each has
+ * its own transports, EDNS settings and background threads, and they share a cache only if
+ * given the same one.
+ */
+public class Resolver implements Closeable {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final long QUERY_TIMEOUT_MILLIS = 5000;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    private static final int MIN_PREFETCH_TTL_SECONDS = 10;
+    private static final int REFRESH_THREADS = 4;
+    private static final int MAX_QUEUED_PREFETCHES = 256;
+    private static final int STALE_THREADS = 16;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final int GLUE_THREADS = 32;
+    private static final int BACKGROUND_GLUE_QUERIES = 16;
+    private static final int RESPONSE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long DEFAULT_STALE_ANSWER_MILLIS = 1800;
+    private static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 2 * QUERY_TIMEOUT_MILLIS;
+    private static final int DEFAULT_MAX_QUERIES_PER_LOOKUP = 100;
+
+    private volatile InetAddress rootServer;
+    private final int dnsPort;
+    private final DNSCache cache;
+    private final DelegationIndex delegations;
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final ResolverMetrics metrics;
+    private final UdpTransport transport;
+    private final TcpTransport tcpTransport;
+    // Shared by both transports, so a server that rejects EDNS over one is not sent it over the other
+    private final EdnsSupport edns = new EdnsSupport();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dns-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Responses are cached and traced on these threads rather than on the transport thread, so
+    // that contention in the cache never delays receiving the responses to other queries.
+    private final ExecutorService responsePool = Executors.newFixedThreadPool(RESPONSE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "dns-response");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SingleFlight<DNSNode, Set<ResourceRecord>> resolutions = new SingleFlight<>();
+    private final SingleFlight<QueryKey, DNSResponse> queries = new SingleFlight<>();
+
+    // Refresh-ahead: cached records hit when less than this fraction of their TTL remains are
+    // resolved again in the background. Zero disables refreshing. Refreshes are dropped when
+    // too many are waiting, as the records are still served from the cache in the meantime.
+    private final double prefetchFraction = Double.parseDouble(System.getProperty("dnslookup.prefetchFraction", "0.1"));
+    private final Set<DNSNode> prefetching = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refreshPool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_PREFETCHES), runnable -> {
+        Thread thread = new Thread(runnable, "dns-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Glueless delegations: the addresses of all name servers are resolved at once, each on
+    // its own thread, since each resolution blocks until it completes. When every thread is
+    // busy, the lookup resolves the address itself.
+    private final ExecutorService gluePool = new ThreadPoolExecutor(0, GLUE_THREADS, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "dns-glue");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // Serve-stale: how long a lookup waits for a fresh answer before falling back to expired
+    // records still in the cache, which are then refreshed in the background. The fresh answer
+    // is resolved on one of these threads, so the lookup can stop waiting for it; they are not
+    // shared with prefetching, and nothing is queued for them, so a lookup never waits behind
+    // another, even one it is part of.
+    private final long staleAnswerMillis = Long.getLong("dnslookup.staleAnswerMillis", DEFAULT_STALE_ANSWER_MILLIS);
+    private final ExecutorService stalePool = new ThreadPoolExecutor(0, STALE_THREADS, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "dns-stale-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Limits of each lookup, including the CNAME targets and name server addresses it needs.
+    private volatile long lookupTimeoutMillis = Long.getLong("dnslookup.lookupTimeoutMillis", DEFAULT_LOOKUP_TIMEOUT_MILLIS);
+    private volatile int maxQueriesPerLookup = Integer.getInteger("dnslookup.maxQueries", DEFAULT_MAX_QUERIES_PER_LOOKUP);
+
+    // Tracing: a sampled fraction of lookups is given a nonzero ID, and the queries and
+    // responses of those lookups are handed to the trace sink. Other lookups carry ID 0.
+    private volatile TraceSink traceSink = null;
+    private volatile double traceSampleRate = 1;
+    private final AtomicLong lookupIds = new AtomicLong();
+
+    /** Creates a resolver that uses the shared DNS cache, and sends queries to the port given
+     * by the system property dnslookup.port (53 by default).
+     *
+     * @param rootServer Address of the root DNS server to start the search at.
+     * @throws IOException If the transport cannot be opened.
+     */
+    public Resolver(InetAddress rootServer) throws IOException {
+        this(rootServer, Integer.getInteger("dnslookup.port", DEFAULT_DNS_PORT), DNSCache.getInstance());
+    }
+
+    /** Creates a resolver and opens the transports used for its queries.
+     *
+     * @param rootServer Address of the root DNS server to start the search at.
+     * @param dnsPort    Port DNS servers are queried on.
+     * @param cache      Cache used for the results of lookups.
+     * @throws IOException If the transport cannot be opened.
+     */
+    public Resolver(InetAddress rootServer, int dnsPort, DNSCache cache) throws IOException {
+        this.rootServer = rootServer;
+        this.dnsPort = dnsPort;
+        this.cache = cache;
+        this.delegations = new DelegationIndex(cache);
+        this.metrics = new ResolverMetrics(cache, rttEstimator);
+        transport = new UdpTransport(edns);
+        transport.setRttEstimator(rttEstimator);
+        transport.setMetrics(metrics);
+        tcpTransport = new TcpTransport(edns);
+    }
+
+    /** @return The address of the root DNS server lookups start at. */
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    /** Changes the root DNS server. Lookups already started are not affected.
+     *
+     * @param rootServer Address of the new root DNS server.
+     */
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    /** Changes the limits of lookups started from now on. The defaults are given by the system
+     * properties dnslookup.lookupTimeoutMillis (10 seconds) and dnslookup.maxQueries (100).
+     *
+     * @param timeoutMillis Time a lookup may take before it is abandoned, in milliseconds.
+     * @param maxQueries    Number of upstream queries a lookup may send, including hedges.
+     */
+    public void setLookupLimits(long timeoutMillis, int maxQueries) {
+        if (timeoutMillis <= 0 || maxQueries <= 0)
+            throw new IllegalArgumentException("lookup limits must be positive");
+        this.lookupTimeoutMillis = timeoutMillis;
+        this.maxQueriesPerLookup = maxQueries;
+    }
+
+    /** Changes the UDP payload size advertised in the EDNS OPT record of queries. The default
+     * is given by the system property dnslookup.ednsPayloadSize (1232 bytes).
+     *
+     * @param size Payload size in bytes, between 512 and 65535, or 0 to send queries without
+     *             an OPT record.
+     * @throws IllegalArgumentException If the size is invalid.
+     */
+    public void setUdpPayloadSize(int size) {
+        edns.setUdpPayloadSize(size);
+    }
+
+    /** @return The UDP payload size advertised in queries, or 0 if EDNS is disabled. */
+    public int getUdpPayloadSize() {
+        return edns.getUdpPayloadSize();
+    }
+
+    /** @return The cache used for the results of lookups. */
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    /** @return The metrics describing the work done by this resolver. */
+    public ResolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts tracing a sample of lookups. Trace events are written in the background, as text
+     * on the standard output or as JSON lines appended to a file. Tracing already started is
+     * stopped first.
+     *
+     * @param sampleRate Fraction of lookups traced, greater than 0 and at most 1.
+     * @param file       File the trace is appended to, or null for the standard output.
+     * @throws IOException If the file cannot be opened, or the previous trace cannot be closed.
+     */
+    public void startTracing(double sampleRate, Path file) throws IOException {
+        stopTracing();
+        TraceSink sink = file == null ? TraceSink.toConsole() : TraceSink.toFile(file);
+        traceSampleRate = sampleRate;
+        traceSink = sink;
+    }
+
+    /**
+     * Stops tracing, if started, once the events already collected have been written.
+     *
+     * @throws IOException If the trace cannot be written or closed.
+     */
+    public void stopTracing() throws IOException {
+        TraceSink sink = traceSink;
+        traceSink = null;
+        if (sink != null) {
+            sink.close();
+            if (sink.getDroppedCount() > 0)
+                System.err.println(sink.getDroppedCount() + " trace events were dropped.");
+        }
+    }
+
+    /** @return true if lookups are being traced. */
+    public boolean isTracing() {
+        return traceSink != null;
+    }
+
+    /**
+     * Resolves a list of host names concurrently, sharing the cache between all resolutions.
+     * Names that appear more than once in the list are only resolved once, and every occurrence
+     * receives the same result. The consumer is called as soon as each name is resolved, from
+     * the thread that resolved it, so results arrive in completion order rather than list order.
+     *
+     * @param hostNames   Fully qualified domain names of the hosts being searched.
+     * @param type        Record type for search.
+     * @param parallelism Maximum number of names resolved at the same time.
+     * @param consumer    Action to be performed for each name and its set of results.
+     */
+    public void resolveBatch(List<String> hostNames, RecordType type, int parallelism,
+                             BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "dns-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<DNSNode, CompletableFuture<Set<ResourceRecord>>> resolutions = new HashMap<>();
+            List<CompletableFuture<Void>> printed = new ArrayList<>(hostNames.size());
+            for (String hostName : hostNames) {
+                DNSNode node = new DNSNode(hostName, type);
+                CompletableFuture<Set<ResourceRecord>> resolution = resolutions.computeIfAbsent(node,
+                        key -> CompletableFuture.supplyAsync(() -> getResults(key), executor));
+                printed.add(resolution.thenAccept(results -> consumer.accept(node, results)));
+            }
+            CompletableFuture.allOf(printed.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Finds all the results for a specific node, from the cache if possible, or by resolving
+     * it otherwise. This is the entry point for every lookup, and where lookups are sampled
+     * for tracing.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested. The set
+     *         is empty if the lookup reaches its deadline or query budget without an answer.
+     */
+    public Set<ResourceRecord> getResults(DNSNode node) {
+        // Answers already cached need no lookup context, which keeps cache hits cheap
+        Set<ResourceRecord> results = findCachedResults(node);
+        return results != null ? results : resolveUncached(node);
+    }
+
+    /**
+     * Resolves a node that findCachedResults did not find, without looking it up in the cache
+     * again. Together the two methods do what getResults does, for callers that answer cache
+     * hits and resolve cache misses on different threads.
+     *
+     * @param node Host and record type to be resolved.
+     * @return A set of resource records, as returned by getResults.
+     */
+    public Set<ResourceRecord> resolveUncached(DNSNode node) {
+        LookupContext context = newLookup();
+        Set<ResourceRecord> results = resolveOrServeStale(node, context);
+        if (results.isEmpty()) {
+            if (context.isExpired()) {
+                metrics.recordDeadlineExceeded();
+                traceEvent(context, "deadline", node);
+            } else if (context.isBudgetExhausted()) {
+                metrics.recordBudgetExhausted();
+                traceEvent(context, "budget", node);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Creates the context of a new lookup, and chooses whether the lookup is traced.
+     *
+     * @return The context of the new lookup.
+     */
+    private LookupContext newLookup() {
+        long lookupId = 0;
+        if (traceSink != null) {
+            double rate = traceSampleRate;
+            if (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)
+                lookupId = lookupIds.incrementAndGet();
+        }
+        return new LookupContext(lookupId, lookupTimeoutMillis, maxQueriesPerLookup);
+    }
+
+    private void traceQuery(LookupContext context, DNSNode node, InetAddress server) {
+        TraceSink sink = traceSink;
+        if (context.getLookupId() != 0 && sink != null)
+            sink.query(context.getLookupId(), node, server);
+    }
+
+    private void traceResponse(LookupContext context, DNSNode node, InetAddress server, DNSResponse dnsResponse) {
+        TraceSink sink = traceSink;
+        if (context.getLookupId() != 0 && sink != null)
+            sink.response(context.getLookupId(), node, server, dnsResponse);
+    }
+
+    private void traceEvent(LookupContext context, String kind, DNSNode node) {
+        TraceSink sink = traceSink;
+        if (context.getLookupId() != 0 && sink != null)
+            sink.event(context.getLookupId(), kind, node);
+    }
+
+    /**
+     * Finds all the result for a specific node.
+     *
+     * @param node    Host and record type to be used for search.
+     * @param context Context of the lookup. Its depth limits the number of recursive calls due
+     *                to CNAME redirection; once it exceeds MAX_INDIRECTION_LEVEL, the function
+     *                prints an error message and returns an empty set.
+     * @return A set of resource records corresponding to the specific query requested. If the
+     *         query cannot be resolved in time but expired records are still cached for it,
+     *         those records are returned with a short TTL. Once the lookup has run out of time
+     *         or queries, only cached records are returned.
+     */
+    private Set<ResourceRecord> getResults(DNSNode node, LookupContext context) {
+
+        if (context.getDepth() > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return Collections.emptySet();
+        }
+
+        Set<ResourceRecord> results = findCachedResults(node);
+        return results != null ? results : resolveOrServeStale(node, context);
+    }
+
+    /**
+     * Finds the results for a node in the cache, including a cached negative answer. The lookup
+     * counts as a single cache hit or miss, and records close to expiring are prefetched.
+     *
+     * @param node Host and record type to be used for search.
+     * @return The cached records, an empty set if the node is known not to exist or to have no
+     *         records of its type, or null if the node must be resolved.
+     */
+    public Set<ResourceRecord> findCachedResults(DNSNode node) {
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        if (!results.isEmpty()) { // check if cache already contains results
+            prefetchIfDue(node, results);
+            return results;
+        }
+        if (cache.getNegativeResult(node) != null) // known not to exist, or to have no such records
+            return Collections.emptySet();
+        return null;
+    }
+
+    /**
+     * Resolves a node that is not in the cache. If expired records are still cached for it,
+     * the servers are given a limited time to provide a fresh answer before the expired records
+     * are served instead. If every thread that resolves such answers is busy, the expired
+     * records are served at once.
+     *
+     * @param node    Host and record type to be resolved.
+     * @param context Context of the lookup.
+     * @return A set of resource records, empty if the node could not be resolved and nothing
+     *         expired is cached for it.
+     */
+    private Set<ResourceRecord> resolveOrServeStale(DNSNode node, LookupContext context) {
+        Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+        if (context.isExpired() || context.isBudgetExhausted())
+            return staleResults;
+        if (staleResults.isEmpty())
+            return resolve(node, context);
+
+        // An expired answer is available: give the servers a limited time to provide a fresh
+        // one, and serve the expired answer if they fail or are too slow. In that case the
+        // resolution carries on in the background and refreshes the cache when it completes.
+        try {
+            CompletableFuture<Set<ResourceRecord>> refresh =
+                    CompletableFuture.supplyAsync(() -> resolve(node, context), stalePool);
+            Set<ResourceRecord> freshResults = refresh.get(Math.min(staleAnswerMillis, context.getRemainingMillis()),
+                    TimeUnit.MILLISECONDS);
+            if (!freshResults.isEmpty() || cache.peekNegativeResult(node) != null)
+                return freshResults;
+        } catch (TimeoutException | ExecutionException | RejectedExecutionException e) {
+            // fall through to the stale answer
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.recordStaleAnswer();
+        traceEvent(context, "stale", node);
+        return staleResults;
+    }
+
+    /**
+     * Resolves a node by querying servers, starting at the closest cached delegation, and
+     * returns the results cached as a consequence. Lookups that need the same node while it is
+     * being resolved share that resolution, waiting for it until their deadline. A step that
+     * needs a node already in its own chain of resolutions, or whose wait would lead back to that
+     * chain, gets no results for it, since it would wait for itself. The latency and number of iterations of each resolution are recorded in
+     * the metrics.
+     *
+     * @param node    Host and record type to be resolved.
+     * @param context Context of the lookup.
+     * @return A set of resource records, empty if the node could not be resolved.
+     */
+    private Set<ResourceRecord> resolve(DNSNode node, LookupContext context) {
+        LookupContext resolving = context.resolving(node);
+        return resolutions.execute(node, () -> {
+            long start = System.nanoTime();
+            int iterations = retrieveResultsFromServers(node, findStartingDelegation(node), resolving);
+            Set<ResourceRecord> results = cache.peek(node);
+            metrics.recordResolution((System.nanoTime() - start) / 1000, iterations,
+                    !results.isEmpty() || cache.peekNegativeResult(node) != null);
+            return results;
+        }, Collections.emptySet(), context.getRemainingMillis(), context.getChain());
+    }
+
+    /**
+     * Starts resolving a node again in the background if any of its cached records is close to
+     * expiring, so that popular names are refreshed before they expire and callers keep being
+     * served from the cache. Only one refresh per node runs at a time, and records with a very
+     * short TTL are not refreshed.
+     *
+     * @param node    Host name and record type that was just served from the cache.
+     * @param results Records served for the node.
+     */
+    private void prefetchIfDue(DNSNode node, Set<ResourceRecord> results) {
+        if (prefetchFraction <= 0) return;
+        for (ResourceRecord record : results) {
+            if (record.getOriginalTTL() < MIN_PREFETCH_TTL_SECONDS || !record.isDueForRefresh(prefetchFraction))
+                continue;
+            if (prefetching.add(node)) {
+                try {
+                    refreshPool.execute(() -> {
+                        try {
+                            LookupContext context = newLookup();
+                            traceEvent(context, "prefetch", node);
+                            retrieveResultsFromServers(node, findStartingDelegation(node), context);
+                        } finally {
+                            prefetching.remove(node);
+                        }
+                    });
+                    metrics.recordPrefetch();
+                } catch (RejectedExecutionException e) {
+                    prefetching.remove(node);
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Finds where iterative resolution should start: the closest enclosing zone whose
+     * delegation is already cached, or the root zone and server if there is none.
+     *
+     * @param node Host name and record type to be resolved.
+     * @return The zone and the addresses of the servers the first query may be sent to.
+     */
+    private DelegationIndex.Delegation findStartingDelegation(DNSNode node) {
+        DelegationIndex.Delegation delegation = delegations.findClosestDelegation(node.getHostName());
+        return delegation == null ? new DelegationIndex.Delegation("", List.of(rootServer)) : delegation;
+    }
+
+    /**
+     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
+     * and the query is repeated with a new server if the provided one is non-authoritative.
+     * Results are stored in the cache.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param zone    Zone the server is a name server of.
+     * @param server  Address of the server to be used for the query.
+     * @param context Context of the lookup this query is part of.
+     * @return The number of servers queried in turn, following referrals.
+     */
+    private int retrieveResultsFromServer(DNSNode node, String zone, InetAddress server, LookupContext context) {
+        return retrieveResultsFromServers(node, new DelegationIndex.Delegation(zone, List.of(server)), context);
+    }
+
+    /**
+     * Retrieves DNS results from one of a set of equivalent DNS servers, such as the name
+     * servers of a zone. The server with the lowest smoothed RTT is queried first, and the
+     * query is hedged to the next fastest server if it is not answered in time. Otherwise
+     * behaves like retrieveResultsFromServer. Nothing is sent once the lookup has run out of
+     * time or queries, and the response is only awaited until the deadline of the lookup; a
+     * query still in flight then completes in the background and its records are cached.
+     *
+     * @param node       Host name and record type to be used for the query.
+     * @param delegation Zone whose servers may be used for the query, and their addresses.
+     * @param context    Context of the lookup this query is part of.
+     * @return The number of servers queried in turn, following referrals.
+     */
+    private int retrieveResultsFromServers(DNSNode node, DelegationIndex.Delegation delegation, LookupContext context) {
+        if (context.isExpired() || context.isBudgetExhausted())
+            return 0;
+        try {
+            DNSResponse dnsResponse = performHedgedQuery(node, delegation.getZone(),
+                    rttEstimator.order(delegation.getServers()), context)
+                    .get(context.getRemainingMillis(), TimeUnit.MILLISECONDS);
+            if (dnsResponse.getAuthoritative()) {
+                handleCnameQuery(node, dnsResponse, context);
+            }
+            if (dnsResponse.getAnswerRecords().isEmpty()) {
+                return 1 + handleNameServerQuery(node, dnsResponse, context);
+            }
+        } catch (Exception e) {
+            return 1;
+        }
+        return 1;
+    }
+
+    /**
+     * Handles resolving cname queries
+     */
+    private void handleCnameQuery(DNSNode node, DNSResponse dnsResponse, LookupContext context) {
+        ResourceRecord cnameRR = dnsResponse.getAnswerRecords().get(0);
+        if (cnameRR.getType() == RecordType.CNAME) {
+            LookupContext target = context.followCname();
+            metrics.recordCname(target.getDepth());
+            Set<ResourceRecord> answerRecords = getResults(new DNSNode(cnameRR.getTextResult(), node.getType()), target);
+            // Cache results
+            for (ResourceRecord answerRecord : answerRecords) {
+                if (answerRecord.hasAddress()) {
+                    cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), answerRecord.getTTL(),
+                            answerRecord.getAddress()));
+                } else {
+                    cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), answerRecord.getTTL(),
+                            answerRecord.getTextResult()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles resolving additional name server queries. The response only holds the NS
+     * records and glue that are within the zone of the server that sent it, as left by
+     * sendQuery, so the referral is to a zone below it.
+     *
+     * @return The number of servers queried in turn after the referral.
+     */
+    private int handleNameServerQuery(DNSNode node, DNSResponse dnsResponse, LookupContext context) {
+        String zone = null;
+        for (ResourceRecord nextNameServer : dnsResponse.getAuthorityRecords()) {
+            if (nextNameServer.getType() == RecordType.NS) {
+                zone = nextNameServer.getHostName();
+                break;
+            }
+        }
+        if (zone == null)
+            return 0;
+
+        // Additional information contains IP, match domain name to find the IPs of all name
+        // servers that can be queried next
+        List<InetAddress> nameServers = new ArrayList<>();
+        for (ResourceRecord nextNameServer : dnsResponse.getAuthorityRecords()) {
+            for (ResourceRecord additionalRecord : dnsResponse.getAdditionalRecords()) {
+                if (additionalRecord.getHostName().equals(nextNameServer.getTextResult())
+                        && additionalRecord.getType() == RecordType.A) {
+                    nameServers.add(additionalRecord.getInetResult());
+                }
+            }
+        }
+        if (!nameServers.isEmpty()) {
+            return retrieveResultsFromServers(node, new DelegationIndex.Delegation(zone, nameServers), context);
+        }
+
+        // No glue for any name server: use an address already cached for one of them, or
+        // resolve them all and query the first one whose address is found
+        List<String> nameServerNames = new ArrayList<>();
+        for (ResourceRecord nextNameServer : dnsResponse.getAuthorityRecords()) {
+            if (nextNameServer.getType() == RecordType.NS && nextNameServer.getHostName().equals(zone)
+                    && !nameServerNames.contains(nextNameServer.getTextResult()))
+                nameServerNames.add(nextNameServer.getTextResult());
+        }
+        for (String nameServerName : nameServerNames) {
+            InetAddress address = findAddress(nameServerName, cache.peek(new DNSNode(nameServerName, RecordType.A)));
+            if (address != null)
+                return retrieveResultsFromServer(node, zone, address, context);
+        }
+        InetAddress address = resolveFirstAddress(nameServerNames, context);
+        return address == null ? 0 : retrieveResultsFromServer(node, zone, address, context);
+    }
+
+    /**
+     * Resolves the addresses of a list of name servers in parallel, and returns as soon as one
+     * of them is found. The other resolutions carry on in the background, so that the cache
+     * holds the addresses of every name server of the zone for later lookups. They count
+     * towards the deadline and query budget of the lookup while it waits for them; once it
+     * stops waiting, they share a small budget of their own, up to the same deadline.
+     *
+     * @param nameServerNames Host names of the name servers.
+     * @param context         Context of the lookup that needs a name server.
+     * @return The first address found, or null if none is found before the deadline.
+     */
+    private InetAddress resolveFirstAddress(List<String> nameServerNames, LookupContext context) {
+        if (nameServerNames.isEmpty())
+            return null;
+        if (nameServerNames.size() == 1)
+            return findAddress(nameServerNames.get(0),
+                    getResults(new DNSNode(nameServerNames.get(0), RecordType.A), context));
+
+        CompletableFuture<InetAddress> first = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(nameServerNames.size());
+        LookupContext branch = context.branch(BACKGROUND_GLUE_QUERIES);
+        try {
+            for (String nameServerName : nameServerNames) {
+                gluePool.execute(() -> {
+                    InetAddress address = null;
+                    try {
+                        address = findAddress(nameServerName,
+                                getResults(new DNSNode(nameServerName, RecordType.A), branch));
+                    } finally {
+                        if (address != null)
+                            first.complete(address);
+                        else if (pending.decrementAndGet() == 0)
+                            first.complete(null);
+                    }
+                });
+            }
+            return first.get(context.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException | RejectedExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            branch.detach();
+        }
+    }
+
+    /**
+     * Finds the address of a name server among the results of a lookup for its name.
+     *
+     * @param nameServerName Host name of the name server.
+     * @param results        Records found for the name.
+     * @return The address of the name server, or null if the results do not include one.
+     */
+    private static InetAddress findAddress(String nameServerName, Set<ResourceRecord> results) {
+        for (ResourceRecord resourceRecord : results) {
+            if (resourceRecord.getHostName().equals(nameServerName)
+                    && (resourceRecord.getType() == RecordType.A || resourceRecord.getType() == RecordType.AAAA)
+                    && resourceRecord.hasAddress()) {
+                return resourceRecord.getInetResult();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a query to the first of a list of servers and, if no valid answer arrives within
+     * that server's adaptive timeout, also to the second one. The first valid answer wins. If
+     * the first server times out or cannot be reached, the second one is queried immediately;
+     * a response reporting an error, such as a name error or an empty authoritative answer, is
+     * final and is not repeated to the second server.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param zone    Zone the servers are name servers of.
+     * @param servers Addresses of the servers, in order of preference.
+     * @param context Context of the lookup the query is part of.
+     * @return a future completed with the first valid DNSResponse, or exceptionally if all
+     *         queries failed
+     */
+    private CompletableFuture<DNSResponse> performHedgedQuery(DNSNode node, String zone, List<InetAddress> servers,
+                                                              LookupContext context) {
+        CompletableFuture<DNSResponse> primary = performQuery(node, zone, servers.get(0), context);
+        if (servers.size() == 1) return primary;
+
+        CompletableFuture<DNSResponse> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicBoolean hedged = new AtomicBoolean(false);
+        BiConsumer<DNSResponse, Throwable> onComplete = (dnsResponse, exception) -> {
+            if (exception == null)
+                result.complete(dnsResponse);
+            else if (pending.decrementAndGet() == 0)
+                result.completeExceptionally(exception);
+        };
+        Runnable hedge = () -> {
+            if (result.isDone() || !hedged.compareAndSet(false, true)) return;
+            pending.incrementAndGet();
+            metrics.recordHedge();
+            performQuery(node, zone, servers.get(1), context).whenComplete(onComplete);
+        };
+
+        long delay = Math.max(MIN_HEDGE_DELAY_MILLIS, rttEstimator.timeoutFor(servers.get(0)));
+        ScheduledFuture<?> scheduledHedge = scheduler.schedule(hedge, delay, TimeUnit.MILLISECONDS);
+        primary.whenComplete((dnsResponse, exception) -> {
+            if (exception != null && isTransportFailure(exception))
+                hedge.run();
+            else
+                scheduledHedge.cancel(false);
+            onComplete.accept(dnsResponse, exception);
+        });
+        return result;
+    }
+
+    /**
+     * Tells whether a query failed because no usable response arrived, as opposed to a response
+     * reporting an error such as a name error, or the lookup running out of time or queries.
+     * Only the former is worth repeating to another server.
+     *
+     * @param exception Exception the query completed with.
+     * @return true if the query timed out, or its connection or socket failed.
+     */
+    private static boolean isTransportFailure(Throwable exception) {
+        Throwable cause = exception instanceof CompletionException && exception.getCause() != null
+                ? exception.getCause() : exception;
+        return cause instanceof IOException || cause instanceof TimeoutException;
+    }
+
+    /**
+     * Performs a DNS query with given node and server IP. The query is sent through the
+     * asynchronous transport, and is resent once if the server does not answer within the
+     * adaptive timeout computed from its RTT.
+     * Records in the response are added to the cache once it arrives. If the same query to
+     * the same server is already in flight, its response is shared instead of sending another.
+     * Each query takes one from the budget of the lookup, even if its response is shared.
+     *
+     * @param zone Zone the server is a name server of; records outside it are ignored.
+     * @return a future completed with the DNSResponse, or exceptionally if the query timed out,
+     *         the response reports an error, or the lookup has run out of time or queries
+     */
+    private CompletableFuture<DNSResponse> performQuery(DNSNode node, String zone, InetAddress server,
+                                                        LookupContext context) {
+        if (context.isExpired())
+            return CompletableFuture.failedFuture(new DNSException("deadline exceeded for " + node));
+        if (!context.tryAcquireQuery())
+            return CompletableFuture.failedFuture(new DNSException("query budget exhausted for " + node));
+        return queries.submit(new QueryKey(node, zone, server), () -> sendQuery(node, zone, server, context));
+    }
+
+    /**
+     * Sends a DNS query through the transport and processes the response when it arrives, on
+     * the response pool rather than the transport thread. If the response is truncated, the
+     * query is repeated over TCP and only the complete response is processed.
+     *
+     * Records outside the zone of the server are dropped from the response before it is
+     * cached or used (the bailiwick rule), so a server cannot take over names it has no
+     * authority over, for example by returning NS records for a parent zone. NS records are
+     * also dropped unless they delegate a zone that encloses the name queried.
+     *
+     * @return a future completed with the DNSResponse, holding only records within the zone
+     */
+    private CompletableFuture<DNSResponse> sendQuery(DNSNode node, String zone, InetAddress server,
+                                                     LookupContext context) {
+        InetSocketAddress address = new InetSocketAddress(server, dnsPort);
+        traceQuery(context, node, server);
+        return transport.query(node, address, rttEstimator.timeoutFor(server), 1)
+                .thenCompose(dnsResponse -> {
+                    if (!dnsResponse.isTruncated())
+                        return CompletableFuture.completedFuture(dnsResponse);
+                    metrics.recordTcpFallback();
+                    traceEvent(context, "tcp", node);
+                    return tcpTransport.query(node, address, QUERY_TIMEOUT_MILLIS);
+                })
+                .thenApplyAsync(receivedResponse -> {
+                    traceResponse(context, node, server, receivedResponse);
+                    DNSResponse dnsResponse = withinZone(receivedResponse, node, zone);
+                    cacheResponse(node, dnsResponse);
+                    try {
+                        checkRCodeErrors(dnsResponse);
+                    } catch (DNSException e) {
+                        throw new CompletionException(e);
+                    }
+                    return dnsResponse;
+                }, responsePool);
+    }
+
+    /**
+     * Returns a copy of a response without the records that are outside the zone of the server
+     * that sent it, and without NS records that do not delegate a zone enclosing the name
+     * queried.
+     *
+     * @param dnsResponse Response as received from the server.
+     * @param node        The host name and record type that was queried.
+     * @param zone        Zone the server is a name server of, or an empty string for the root.
+     * @return The response itself if no record was dropped, or a copy otherwise.
+     */
+    private static DNSResponse withinZone(DNSResponse dnsResponse, DNSNode node, String zone) {
+        if (zone.isEmpty() && dnsResponse.getAuthorityRecords().stream().allMatch(record ->
+                record.getType() != RecordType.NS || DelegationIndex.isInZone(node.getHostName(), record.getHostName())))
+            return dnsResponse;
+        DNSResponse filtered = new DNSResponse(dnsResponse.getQueryID(), dnsResponse.getAuthoritative(),
+                dnsResponse.isTruncated(), dnsResponse.getRCode());
+        if (dnsResponse.hasEdns())
+            filtered.setEdns(dnsResponse.getUdpPayloadSize(), dnsResponse.getEdnsVersion(), dnsResponse.getRCode());
+        for (ResourceRecord answer : dnsResponse.getAnswerRecords())
+            if (DelegationIndex.isInZone(answer.getHostName(), zone))
+                filtered.addAnswerRecord(answer);
+        for (ResourceRecord authority : dnsResponse.getAuthorityRecords())
+            if (DelegationIndex.isInZone(authority.getHostName(), zone) && (authority.getType() != RecordType.NS
+                    || DelegationIndex.isInZone(node.getHostName(), authority.getHostName())))
+                filtered.addAuthorityRecord(authority);
+        for (ResourceRecord additional : dnsResponse.getAdditionalRecords())
+            if (DelegationIndex.isInZone(additional.getHostName(), zone))
+                filtered.addAdditionalRecord(additional);
+        return filtered;
+    }
+
+    /**
+     * Puts the answers, authorityRR and additionalRR of a decoded
+     * DNS response in cache. If the response is an authoritative name
+     * error, or an authoritative answer with no records (NODATA), and it
+     * includes an SOA record, the negative answer is cached as well,
+     * along with the SOA record.
+     *
+     * @param node        the host name and record type that was queried
+     * @param dnsResponse the decoded DNS response
+     */
+    private void cacheResponse(DNSNode node, DNSResponse dnsResponse) {
+        // Only the zone's own servers can say that a name or type does not exist; a negative
+        // answer without the AA bit may come from a cache or a misconfigured server.
+        long negativeTTL = dnsResponse.getNegativeTTL();
+        if (negativeTTL >= 0 && dnsResponse.getAnswerRecords().isEmpty() && dnsResponse.getAuthoritative()) {
+            if (dnsResponse.getRCode() == 3)
+                cache.addNegativeResult(node, NegativeAnswer.NAME_ERROR, negativeTTL, dnsResponse.getSoaRecord());
+            else if (dnsResponse.getRCode() == 0)
+                cache.addNegativeResult(node, NegativeAnswer.NO_DATA, negativeTTL, dnsResponse.getSoaRecord());
+        }
+        for (ResourceRecord answer : dnsResponse.getAnswerRecords()) {
+            cache.addResult(answer);
+        }
+        for (ResourceRecord authority : dnsResponse.getAuthorityRecords()) {
+            cache.addResult(authority);
+        }
+        for (ResourceRecord additional : dnsResponse.getAdditionalRecords()) {
+            cache.addResult(additional);
+        }
+    }
+
+    /**
+     * Checks for error codes within the Rcode of a DNS response. And throws a DNSException
+     * when the rcode indicates that there is an error.
+     *
+     * @param dnsResponse
+     */
+    private static void checkRCodeErrors(DNSResponse dnsResponse) throws DNSException {
+        if (dnsResponse.getRCode() == 5) {
+            throw new DNSException("rCode == 5");
+        } else if (dnsResponse.getRCode() == 3) {
+            throw new DNSException("rCode == 3");
+        } else if (dnsResponse.getAuthoritative() && dnsResponse.getRCode() == 0
+                && dnsResponse.getAnswerRecords().size() == 0) {
+            throw new DNSException("authoritative reponse returned but there is no answer");
+        }
+    }
+
+    /** Stops tracing and background refreshes, and closes the transports. Lookups still in
+     * progress fail, and no lookup can be made afterwards.
+     *
+     * @throws IOException If the UDP transport or the trace cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        refreshPool.shutdownNow();
+        stalePool.shutdownNow();
+        gluePool.shutdownNow();
+        responsePool.shutdownNow();
+        try {
+            transport.close();
+        } finally {
+            tcpTransport.close();
+            stopTracing();
+        }
+    }
+
+    /** Identifies a query to a specific server, so that identical queries in flight are sent
+     * only once. The zone is part of the key, since it decides which records of the response
+     * are kept. */
+    private static final class QueryKey {
+        private final DNSNode node;
+        private final String zone;
+        private final InetAddress server;
+
+        QueryKey(DNSNode node, String zone, InetAddress server) {
+            this.node = node;
+            this.zone = zone;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            QueryKey that = (QueryKey) o;
+            return node.equals(that.node) && zone.equals(that.zone) && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * node.hashCode() + zone.hashCode()) + server.hashCode();
+        }
+    }
+}
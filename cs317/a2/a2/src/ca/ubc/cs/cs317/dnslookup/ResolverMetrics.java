@@ -0,0 +1,262 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms describing the work done by the resolver: queries sent,
+ * retries, timeouts and RTT for each server, and latency, iterations and CNAME depth for each
+ * resolution. Cache hit ratio is taken from the counters the cache already keeps, and counts
+ * cached negative answers as hits.
+ *
+ * Every counter is a LongAdder and every distribution a LatencyHistogram, so recording never
+ * locks and threads updating different counters do not contend. Lookups answered from the
+ * cache record nothing here; only work that already involves the network is measured.
+ * Metrics can be printed for people to read, or written as JSON for other programs.
+ *
+ * Each server has its own counters and RTT histogram, for the first MAX_SERVERS servers queried
+ * only; later servers are only counted in the totals, so the metrics of a long-running resolver
+ * stay small however many servers it meets.
+ */
+public class ResolverMetrics {
+
+    /** Number of servers whose metrics are kept separately. */
+    public static final int MAX_SERVERS = 256;
+
+    private final DNSCache cache;
+    private final RttEstimator rttEstimator;
+
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder tcpFallbacks = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder failedResolutions = new LongAdder();
+    private final LongAdder staleAnswers = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder deadlinesExceeded = new LongAdder();
+    private final LongAdder budgetsExhausted = new LongAdder();
+    private final LatencyHistogram queryRtt = new LatencyHistogram();
+    private final LatencyHistogram resolutionLatency = new LatencyHistogram();
+    private final LatencyHistogram iterations = new LatencyHistogram();
+    private final LatencyHistogram cnameDepth = new LatencyHistogram();
+    private final Map<InetAddress, ServerMetrics> servers = new ConcurrentHashMap<>();
+
+    /** Creates an empty set of metrics.
+     *
+     * @param cache        Cache whose hit and miss counters are reported.
+     * @param rttEstimator Estimator whose smoothed RTT is reported for each server, or null.
+     */
+    public ResolverMetrics(DNSCache cache, RttEstimator rttEstimator) {
+        this.cache = cache;
+        this.rttEstimator = rttEstimator;
+    }
+
+    /** Records a query sent to a server, whether first sent or resent after a timeout. */
+    public void recordQuerySent(boolean retry) {
+        queriesSent.increment();
+        if (retry)
+            retries.increment();
+    }
+
+    /** Records the RTT of a response, in microseconds. */
+    public void recordRtt(InetAddress server, long rttMicros) {
+        queryRtt.record(rttMicros);
+        ServerMetrics metrics = serverMetrics(server);
+        if (metrics != null)
+            metrics.rtt.record(rttMicros);
+    }
+
+    /** Records an attempt that received no response in time. */
+    public void recordTimeout(InetAddress server) {
+        timeouts.increment();
+        ServerMetrics metrics = serverMetrics(server);
+        if (metrics != null)
+            metrics.timeouts.increment();
+    }
+
+    /** Records a truncated response that was repeated over TCP. */
+    public void recordTcpFallback() {
+        tcpFallbacks.increment();
+    }
+
+    /** Records a query that was hedged to a second server. */
+    public void recordHedge() {
+        hedges.increment();
+    }
+
+    /** Records a completed resolution.
+     *
+     * @param latencyMicros Time taken by the resolution, in microseconds.
+     * @param steps         Number of servers queried in turn, following referrals.
+     * @param resolved      Whether any result was found.
+     */
+    public void recordResolution(long latencyMicros, int steps, boolean resolved) {
+        resolutionLatency.record(latencyMicros);
+        iterations.record(steps);
+        if (!resolved)
+            failedResolutions.increment();
+    }
+
+    /** Records a CNAME that was followed, and the length of the chain up to it. */
+    public void recordCname(int depth) {
+        cnameDepth.record(depth);
+    }
+
+    /** Records a lookup answered with expired records. */
+    public void recordStaleAnswer() {
+        staleAnswers.increment();
+    }
+
+    /** Records a cached node refreshed in the background before expiring. */
+    public void recordPrefetch() {
+        prefetches.increment();
+    }
+
+    /** Records a lookup abandoned without an answer because it reached its deadline. */
+    public void recordDeadlineExceeded() {
+        deadlinesExceeded.increment();
+    }
+
+    /** Records a lookup abandoned without an answer because it sent all the queries it may. */
+    public void recordBudgetExhausted() {
+        budgetsExhausted.increment();
+    }
+
+    /** @return The metrics of a server, or null if it is not one of the servers tracked. */
+    private ServerMetrics serverMetrics(InetAddress server) {
+        ServerMetrics metrics = servers.get(server);
+        if (metrics != null || servers.size() >= MAX_SERVERS)
+            return metrics;
+        return servers.computeIfAbsent(server, key -> new ServerMetrics());
+    }
+
+    /** @return The fraction of lookups answered from the cache, with a record or with a cached
+     *          negative answer. A negative hit is also counted by the cache as a miss.
+     */
+    private double cacheHitRatio() {
+        long hits = cache.getHitCount() + cache.getNegativeHitCount();
+        long total = cache.getHitCount() + cache.getMissCount();
+        return total == 0 ? 0 : Math.min(1, (double) hits / total);
+    }
+
+    /** Prints all metrics in a human-readable form. Latencies are shown in milliseconds.
+     *
+     * @param out Stream the metrics are printed to.
+     */
+    public void printSummary(PrintStream out) {
+        out.printf(Locale.ROOT, "Cache:        %d hits, %d misses (%.1f%% hit ratio), %d negative hits, %d entries\n",
+                cache.getHitCount(), cache.getMissCount(), 100 * cacheHitRatio(), cache.getNegativeHitCount(),
+                cache.getEntryCount());
+        out.printf(Locale.ROOT, "Queries:      %d sent, %d retries, %d timeouts, %d over TCP, %d hedged\n",
+                queriesSent.sum(), retries.sum(), timeouts.sum(), tcpFallbacks.sum(), hedges.sum());
+        out.printf(Locale.ROOT, "Resolutions:  %d, %d failed, %d stale answers, %d prefetches\n",
+                resolutionLatency.getCount(), failedResolutions.sum(), staleAnswers.sum(), prefetches.sum());
+        out.printf(Locale.ROOT, "Abandoned:    %d past deadline, %d over query budget\n",
+                deadlinesExceeded.sum(), budgetsExhausted.sum());
+        printLatency(out, "Resolution", resolutionLatency);
+        printLatency(out, "Query RTT", queryRtt);
+        out.printf(Locale.ROOT, "Iterations:   mean %.2f, p50 %d, p99 %d, max %d\n", iterations.getMean(),
+                iterations.getPercentile(50), iterations.getPercentile(99), iterations.getMax());
+        out.printf(Locale.ROOT, "CNAME depth:  %d followed, mean %.2f, max %d\n", cnameDepth.getCount(),
+                cnameDepth.getMean(), cnameDepth.getMax());
+        servers.entrySet().stream()
+                .sorted(Comparator.comparing(entry -> entry.getKey().getHostAddress()))
+                .forEach(entry -> {
+                    LatencyHistogram rtt = entry.getValue().rtt;
+                    out.printf(Locale.ROOT, "  %-39s %6d responses, %4d timeouts, srtt %4d, p50 %8.3f, p99 %8.3f ms\n",
+                            entry.getKey().getHostAddress(), rtt.getCount(), entry.getValue().timeouts.sum(),
+                            smoothedRtt(entry.getKey()), rtt.getPercentile(50) / 1000.0,
+                            rtt.getPercentile(99) / 1000.0);
+                });
+    }
+
+    private static void printLatency(PrintStream out, String label, LatencyHistogram histogram) {
+        out.printf(Locale.ROOT, "%-13s mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f ms\n", label + ":",
+                histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    private long smoothedRtt(InetAddress server) {
+        return rttEstimator == null ? -1 : rttEstimator.smoothedRtt(server);
+    }
+
+    /** Returns all metrics as a JSON object. Latencies are in microseconds.
+     *
+     * @return The metrics, as a single line of JSON.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"timestamp\":").append(DNSClock.currentTimeMillis());
+        json.append(",\"cache\":{\"hits\":").append(cache.getHitCount())
+                .append(",\"misses\":").append(cache.getMissCount())
+                .append(",\"hitRatio\":").append(String.format(Locale.ROOT, "%.4f", cacheHitRatio()))
+                .append(",\"negativeHits\":").append(cache.getNegativeHitCount())
+                .append(",\"entries\":").append(cache.getEntryCount())
+                .append(",\"negativeEntries\":").append(cache.getNegativeEntryCount())
+                .append(",\"evictions\":").append(cache.getEvictionCount()).append('}');
+        json.append(",\"queries\":{\"sent\":").append(queriesSent.sum())
+                .append(",\"retries\":").append(retries.sum())
+                .append(",\"timeouts\":").append(timeouts.sum())
+                .append(",\"tcpFallbacks\":").append(tcpFallbacks.sum())
+                .append(",\"hedges\":").append(hedges.sum()).append('}');
+        json.append(",\"resolutions\":{\"failed\":").append(failedResolutions.sum())
+                .append(",\"staleAnswers\":").append(staleAnswers.sum())
+                .append(",\"prefetches\":").append(prefetches.sum())
+                .append(",\"deadlinesExceeded\":").append(deadlinesExceeded.sum())
+                .append(",\"budgetsExhausted\":").append(budgetsExhausted.sum()).append('}');
+        appendHistogram(json.append(",\"resolutionLatencyMicros\":"), resolutionLatency);
+        appendHistogram(json.append(",\"queryRttMicros\":"), queryRtt);
+        appendHistogram(json.append(",\"iterations\":"), iterations);
+        appendHistogram(json.append(",\"cnameDepth\":"), cnameDepth);
+        json.append(",\"servers\":{");
+        boolean first = true;
+        for (Map.Entry<InetAddress, ServerMetrics> entry : servers.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append('"').append(entry.getKey().getHostAddress()).append("\":{\"timeouts\":")
+                    .append(entry.getValue().timeouts.sum())
+                    .append(",\"srttMillis\":").append(smoothedRtt(entry.getKey()));
+            appendHistogram(json.append(",\"rttMicros\":"), entry.getValue().rtt);
+            json.append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean\":").append(String.format(Locale.ROOT, "%.2f", histogram.getMean()))
+                .append(",\"p50\":").append(histogram.getPercentile(50))
+                .append(",\"p90\":").append(histogram.getPercentile(90))
+                .append(",\"p99\":").append(histogram.getPercentile(99))
+                .append(",\"p999\":").append(histogram.getPercentile(99.9))
+                .append(",\"max\":").append(histogram.getMax()).append('}');
+    }
+
+    /** Writes the metrics as JSON to a file, replacing its previous contents. The file is
+     * written under a temporary name first, so a reader never sees a partial file.
+     *
+     * @param file File the metrics are written to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeJson(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, (toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class ServerMetrics {
+        private final LatencyHistogram rtt = new LatencyHistogram();
+        private final LongAdder timeouts = new LongAdder();
+    }
+}
@@ -2,30 +2,85 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Since the cache may hold millions of records, the layout is kept compact. Addresses are
+ * stored as raw bits in two longs, and their textual and InetAddress forms are only created
+ * when asked for. Records cached for the same node share a single DNSNode, and with it the
+ * host name.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private int originalTTL;
     private String textResult;
-    private InetAddress inetResult;
+    private long addressHigh;
+    private long addressLow;
+    private byte addressLength;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName, type), DNSClock.currentTimeMillis() + (ttl * 1000), (int) ttl, result);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(hostName, type, ttl, result.getAddress());
+    }
+
+    /** Creates a record for an IPv4 or IPv6 address given as raw bytes, in network order.
+     *
+     * @param hostName Host name of the record.
+     * @param type     Record type, usually A or AAAA.
+     * @param ttl      Time to live, in seconds.
+     * @param address  Address, either 4 or 16 bytes long. The array is not retained.
+     */
+    public ResourceRecord(String hostName, RecordType type, long ttl, byte[] address) {
+        this(new DNSNode(hostName, type), DNSClock.currentTimeMillis() + (ttl * 1000), (int) ttl, address);
+    }
+
+    /** Creates a record with a textual result that expires at a given time, instead of after a
+     * TTL. This is used to restore records saved in a cache snapshot.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param originalTTL    TTL the record had when it was obtained from a server, in seconds.
+     * @param result         Textual result.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, int originalTTL, String result) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = originalTTL;
+        this.textResult = result;
+    }
+
+    /** Creates an address record that expires at a given time, instead of after a TTL.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param originalTTL    TTL the record had when it was obtained from a server, in seconds.
+     * @param address        Address, either 4 or 16 bytes long. The array is not retained.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, int originalTTL, byte[] address) {
+        if (address.length != 4 && address.length != 16)
+            throw new IllegalArgumentException("invalid address length " + address.length);
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = originalTTL;
+        this.addressLength = (byte) address.length;
+        ByteBuffer bits = ByteBuffer.wrap(address);
+        if (address.length == 4) {
+            this.addressLow = bits.getInt() & 0xffffffffL;
+        } else {
+            this.addressHigh = bits.getLong();
+            this.addressLow = bits.getLong();
+        }
     }
 
     public DNSNode getNode() {
@@ -48,7 +103,27 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - DNSClock.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** The TTL this record had when it was obtained from the DNS server, regardless of how much
+     * of it has elapsed since.
+     *
+     * @return The original TTL, in seconds.
+     */
+    public int getOriginalTTL() {
+        return originalTTL;
+    }
+
+    /** Returns true if this record is close enough to its expiration that it should be
+     * refreshed, that is, if less than a given fraction of its original TTL remains.
+     *
+     * @param fraction Fraction of the original TTL, between 0 and 1.
+     * @return true if the remaining TTL is below the fraction of the original TTL, or false
+     *         otherwise.
+     */
+    public boolean isDueForRefresh(double fraction) {
+        return expirationTime - DNSClock.currentTimeMillis() < originalTTL * 1000L * fraction;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +133,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > DNSClock.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +145,88 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** The time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** Returns a copy of this record that expires at a different time. The original TTL is
+     * kept.
+     *
+     * @param expirationTime Time at which the copy expires, in milliseconds since the epoch.
+     * @return A new record with the same node and result.
+     */
+    ResourceRecord withExpirationTime(long expirationTime) {
+        if (hasAddress())
+            return new ResourceRecord(node, expirationTime, originalTTL, getAddress());
+        return new ResourceRecord(node, expirationTime, originalTTL, textResult);
+    }
+
+    /** Replaces the node of this record with an equal node, so that records cached for the
+     * same node share a single instance instead of each keeping its own copy of the host name.
+     *
+     * @param node Node equal to the node of this record.
+     */
+    void shareNode(DNSNode node) {
+        this.node = node;
     }
 
+    /** Returns true if this record holds an IP address, that is, if getInetResult and
+     * getAddress return a result. This does not create any object.
+     *
+     * @return true if this is an address record, false if it has a textual result.
+     */
+    public boolean hasAddress() {
+        return addressLength != 0;
+    }
+
+    /** The textual result of this record. For address records, the text is formatted from the
+     * address each time this method is called.
+     *
+     * @return The textual result, or the textual form of the address.
+     */
     public String getTextResult() {
+        if (addressLength == 16)
+            return getInetResult().getHostAddress();
+        if (addressLength == 4)
+            return (addressLow >>> 24) + "." + ((addressLow >>> 16) & 0xff) + "." + ((addressLow >>> 8) & 0xff)
+                    + "." + (addressLow & 0xff);
         return textResult;
     }
 
+    /** The address of this record, as a new InetAddress.
+     *
+     * @return The address, or null if this record has a textual result.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        if (addressLength == 0)
+            return null;
+        try {
+            return InetAddress.getByAddress(getAddress());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The address of this record, as raw bytes in network order.
+     *
+     * @return A new array of 4 or 16 bytes, or null if this record has a textual result.
+     */
+    public byte[] getAddress() {
+        if (addressLength == 0)
+            return null;
+        ByteBuffer bits = ByteBuffer.allocate(addressLength);
+        if (addressLength == 4)
+            bits.putInt((int) addressLow);
+        else
+            bits.putLong(addressHigh).putLong(addressLow);
+        return bits.array();
     }
 
     @Override
@@ -89,14 +237,18 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (addressLength != record.addressLength) return false;
+        if (addressHigh != record.addressHigh || addressLow != record.addressLow) return false;
+        return Objects.equals(textResult, record.textResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        if (addressLength != 0)
+            result = 31 * (31 * result + Long.hashCode(addressHigh)) + Long.hashCode(addressLow);
+        else
+            result = 31 * result + textResult.hashCode();
         return result;
     }
 }
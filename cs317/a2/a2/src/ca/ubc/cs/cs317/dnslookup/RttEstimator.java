@@ -0,0 +1,174 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Tracks the round-trip time of each name server, in the way BIND and Unbound do. For every
+ * server, a smoothed RTT (SRTT) and an RTT variance are updated from each response, as in TCP
+ * (RFC 6298), and the timeout for the next query is the SRTT plus four times the variance.
+ * A timeout doubles the server's SRTT, so servers that stop answering are tried last.
+ *
+ * Servers that were never queried are given a moderate SRTT, so they are preferred over servers
+ * known to be slow, but not over servers known to be fast. Estimates that were not updated for
+ * fifteen minutes are forgotten, as in Unbound, so a server that was down gets another chance.
+ * At most MAX_SERVERS servers are tracked; when there are more, forgotten estimates are removed
+ * first, followed by arbitrary ones if that is not enough.
+ */
+public class RttEstimator {
+
+    private static final long UNKNOWN_SERVER_RTT_MILLIS = 376;
+    private static final long INITIAL_TIMEOUT_MILLIS = 1000;
+    private static final long MIN_TIMEOUT_MILLIS = 100;
+    private static final long MAX_TIMEOUT_MILLIS = 5000;
+    private static final long ESTIMATE_LIFETIME_MILLIS = 15 * 60 * 1000;
+
+    /** Maximum number of servers whose RTT is tracked. */
+    public static final int MAX_SERVERS = 10000;
+
+    private final Map<InetAddress, ServerRtt> servers = new ConcurrentHashMap<>();
+
+    /** Updates the estimate for a server with the RTT of a query it answered. Only queries that
+     * were answered without being resent should be measured, since a response to a resent
+     * query cannot be attributed to either attempt.
+     *
+     * @param server    Address of the server that answered.
+     * @param rttMillis Time between sending the query and receiving the response.
+     */
+    public void recordRtt(InetAddress server, long rttMillis) {
+        estimateFor(server).sample(rttMillis);
+    }
+
+    /** Penalizes a server that did not answer a query.
+     *
+     * @param server Address of the server that timed out.
+     */
+    public void recordTimeout(InetAddress server) {
+        estimateFor(server).backOff();
+    }
+
+    /** Returns the time to wait for a response from a server before resending the query.
+     *
+     * @param server Address of the server.
+     * @return The adaptive timeout, in milliseconds.
+     */
+    public long timeoutFor(InetAddress server) {
+        ServerRtt rtt = currentEstimate(server);
+        return rtt == null ? INITIAL_TIMEOUT_MILLIS : rtt.timeout();
+    }
+
+    /** Returns the smoothed RTT of a server.
+     *
+     * @param server Address of the server.
+     * @return The SRTT in milliseconds, or the default SRTT if the server was never measured.
+     */
+    public long smoothedRtt(InetAddress server) {
+        ServerRtt rtt = currentEstimate(server);
+        return rtt == null ? UNKNOWN_SERVER_RTT_MILLIS : rtt.smoothed();
+    }
+
+    /** Sorts a set of servers from the fastest to the slowest known SRTT. Servers with the same
+     * SRTT keep their original order. The SRTT of each server is read once before sorting, since
+     * other threads may update it while the servers are sorted.
+     *
+     * @param candidates Addresses of the servers for a zone.
+     * @return A new list with the servers in order of preference.
+     */
+    public List<InetAddress> order(Collection<InetAddress> candidates) {
+        List<Candidate> measured = new ArrayList<>(candidates.size());
+        for (InetAddress server : candidates)
+            measured.add(new Candidate(server, smoothedRtt(server)));
+        measured.sort(Comparator.comparingLong(candidate -> candidate.smoothed));
+        List<InetAddress> ordered = new ArrayList<>(measured.size());
+        for (Candidate candidate : measured)
+            ordered.add(candidate.server);
+        return ordered;
+    }
+
+    /** Returns the estimate for a server, unless it was not updated recently enough to be used. */
+    private ServerRtt currentEstimate(InetAddress server) {
+        ServerRtt rtt = servers.get(server);
+        if (rtt == null || rtt.isCurrent(DNSClock.currentTimeMillis()))
+            return rtt;
+        servers.remove(server, rtt);
+        return null;
+    }
+
+    /** Returns the estimate to be updated for a server, creating it if needed. */
+    private ServerRtt estimateFor(InetAddress server) {
+        ServerRtt rtt = currentEstimate(server);
+        if (rtt != null)
+            return rtt;
+        rtt = servers.computeIfAbsent(server, key -> new ServerRtt());
+        if (servers.size() > MAX_SERVERS)
+            trim(DNSClock.currentTimeMillis());
+        return rtt;
+    }
+
+    /** Brings the number of servers back within MAX_SERVERS, leaving some room so that trimming
+     * is not needed again on the next new server.
+     */
+    private synchronized void trim(long now) {
+        if (servers.size() <= MAX_SERVERS) return;
+        servers.values().removeIf(rtt -> !rtt.isCurrent(now));
+        Iterator<ServerRtt> iterator = servers.values().iterator();
+        while (servers.size() > MAX_SERVERS - MAX_SERVERS / 10 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static class Candidate {
+        private final InetAddress server;
+        private final long smoothed;
+
+        Candidate(InetAddress server, long smoothed) {
+            this.server = server;
+            this.smoothed = smoothed;
+        }
+    }
+
+    private static class ServerRtt {
+        private long smoothed = -1;
+        private long variance;
+        private volatile long updated = DNSClock.currentTimeMillis();
+
+        boolean isCurrent(long now) {
+            return now - updated < ESTIMATE_LIFETIME_MILLIS;
+        }
+
+        synchronized void sample(long rtt) {
+            updated = DNSClock.currentTimeMillis();
+            if (smoothed < 0) {
+                smoothed = rtt;
+                variance = rtt / 2;
+            } else {
+                variance = (3 * variance + Math.abs(smoothed - rtt)) / 4;
+                smoothed = (7 * smoothed + rtt) / 8;
+            }
+        }
+
+        synchronized void backOff() {
+            updated = DNSClock.currentTimeMillis();
+            if (smoothed < 0) {
+                smoothed = UNKNOWN_SERVER_RTT_MILLIS;
+                variance = UNKNOWN_SERVER_RTT_MILLIS / 2;
+            }
+            smoothed = Math.min(MAX_TIMEOUT_MILLIS, 2 * smoothed);
+        }
+
+        synchronized long smoothed() {
+            return smoothed < 0 ? UNKNOWN_SERVER_RTT_MILLIS : smoothed;
+        }
+
+        synchronized long timeout() {
+            if (smoothed < 0) return INITIAL_TIMEOUT_MILLIS;
+            return Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, smoothed + 4 * variance));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/** Coalesces concurrent requests for the same work. The first caller for a key performs the
+ * work, and callers that arrive while it is still in progress wait for and share its result
+ * instead of repeating it. Once the work completes, the key is forgotten, so a later request
+ * performs the work again.
+ *
+ * Resolutions can depend on each other, for example when a name server's address is needed
+ * to resolve a name in its own zone. Each request comes with the chain of keys its caller is
+ * already performing work for, innermost first, and a caller that asks for a key in its own
+ * chain gets a fallback value instead of waiting for itself. Since the chain is passed with the
+ * request rather than taken from the current thread, this holds when the work is spread over
+ * several threads.
+ *
+ * Other callers wait like any follower, but no longer than the time they are given, usually
+ * what is left before their own deadline, and then get the fallback value too. The work they
+ * stop waiting for is not cancelled, since other callers may still be waiting for it. Each
+ * piece of work records the work started and waited for beneath it, so that a follower whose
+ * wait would lead back to its own chain, such as two name servers whose addresses are each
+ * only reachable through the other, gets the fallback value at once rather than at its
+ * deadline.
+ *
+ * @param <K> Type of the keys identifying a unit of work.
+ * @param <V> Type of the result of the work.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Performs blocking work for a key, or waits for the result of the same work if another
+     * caller is already performing it.
+     *
+     * @param key           Key identifying the work.
+     * @param work          Work to be performed if it is not already in progress.
+     * @param fallback      Result returned if the key is in the caller's own chain, if waiting
+     *                      for the work would lead back to that chain, or if the work performed
+     *                      by another caller does not complete in time.
+     * @param timeoutMillis Maximum time to wait for work performed by another caller, in
+     *                      milliseconds.
+     * @param chain         Keys the caller is already performing work for, innermost first.
+     * @return The result of the work, or the fallback.
+     */
+    public V execute(K key, Supplier<V> work, V fallback, long timeoutMillis, List<K> chain) {
+        if (chain.contains(key))
+            return fallback;
+        Flight<V> flight = new Flight<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        CompletableFuture<V> dependency = existing != null ? existing : flight;
+        Flight<V> parent = chain.isEmpty() ? null : asFlight(flights.get(chain.get(0)));
+        if (parent != null)
+            parent.addDependency(dependency);
+        try {
+            if (existing == null)
+                return lead(key, flight, work);
+            coalesced.increment();
+            if (leadsBackTo(existing, chain))
+                return fallback;
+            return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return fallback;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback;
+        } finally {
+            if (parent != null)
+                parent.removeDependency(dependency);
+        }
+    }
+
+    /** Starts asynchronous work for a key, or returns the pending result of the same work if it
+     * was already started and has not completed yet.
+     *
+     * @param key  Key identifying the work.
+     * @param work Supplier that starts the work, called only if it is not already in progress.
+     * @return A future completed with the result of the work.
+     */
+    public CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> work) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        try {
+            work.get().whenComplete((result, exception) -> {
+                flights.remove(key, flight);
+                if (exception != null)
+                    flight.completeExceptionally(exception);
+                else
+                    flight.complete(result);
+            });
+        } catch (RuntimeException e) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight;
+    }
+
+    /** Returns the number of requests that were served by work already in progress.
+     *
+     * @return The number of coalesced requests.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** Checks whether work depends, directly or through the work it started or is waiting for,
+     * on the work for one of the keys of a chain.
+     */
+    private boolean leadsBackTo(CompletableFuture<V> start, List<K> chain) {
+        Set<CompletableFuture<?>> own = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (K key : chain) {
+            CompletableFuture<V> flight = flights.get(key);
+            if (flight != null)
+                own.add(flight);
+        }
+        Set<CompletableFuture<?>> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<CompletableFuture<?>> toVisit = new ArrayDeque<>();
+        toVisit.push(start);
+        while (!toVisit.isEmpty()) {
+            CompletableFuture<?> flight = toVisit.pop();
+            if (own.contains(flight))
+                return true;
+            if (flight instanceof Flight && visited.add(flight))
+                toVisit.addAll(((Flight<?>) flight).dependencies.keySet());
+        }
+        return false;
+    }
+
+    private Flight<V> asFlight(CompletableFuture<V> future) {
+        return future instanceof Flight ? (Flight<V>) future : null;
+    }
+
+    private V lead(K key, CompletableFuture<V> flight, Supplier<V> work) {
+        try {
+            V result = work.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /** Work performed by a call to execute, which records the work started or waited for on
+     * its behalf while it is in progress, with the number of callers for each.
+     */
+    private static class Flight<V> extends CompletableFuture<V> {
+        private final Map<CompletableFuture<?>, Integer> dependencies = new ConcurrentHashMap<>();
+
+        void addDependency(CompletableFuture<?> dependency) {
+            dependencies.merge(dependency, 1, Integer::sum);
+        }
+
+        void removeDependency(CompletableFuture<?> dependency) {
+            dependencies.computeIfPresent(dependency, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+}
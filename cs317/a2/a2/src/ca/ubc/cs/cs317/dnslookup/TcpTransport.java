@@ -0,0 +1,298 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** TCP transport for DNS queries whose UDP response was truncated. Messages are framed with a
+ * two-byte length prefix (RFC 1035, section 4.2.2). Connections are pooled per server and kept
+ * open while they are in use, so repeated large responses from the same server do not pay for
+ * a new handshake each time. Queries are pipelined: several queries can be outstanding on one
+ * connection, and responses, which may arrive in any order, are matched by query ID. As with
+ * the UDP transport, query IDs are drawn from a secure random generator, and a response is only
+ * accepted if it echoes the question of the query it answers.
+ *
+ * Queries carry the OPT record given by the EDNS settings, which are normally shared with the
+ * UDP transport. A server that rejects the OPT record is sent the query again without one, and
+ * is remembered in the settings, so that neither transport sends it an OPT record again.
+ *
+ * Opening a connection and writing a query block, so they are done on a small pool of sender
+ * threads rather than by the caller. This lets queries be sent from threads that must not
+ * block, such as the UDP transport thread when a truncated response has to be repeated.
+ *
+ * Each connection has a reader thread, which closes the connection once it has been idle for
+ * a while. Futures returned by this class are completed on that thread, or on a sender thread
+ * if the query cannot be sent.
+ */
+public class TcpTransport implements Closeable {
+
+    private static final int UPPER_QUERY_ID_BOUND = 65535;
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+    private static final long IDLE_TIMEOUT_MILLIS = 10000;
+    private static final int SENDER_THREADS = 8;
+    private static final long SENDER_KEEP_ALIVE_SECONDS = 30;
+
+    private final Map<InetSocketAddress, List<Connection>> pools = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService senders;
+    private final EdnsSupport edns;
+    private volatile boolean closed = false;
+
+    /** Creates a transport with EDNS settings of its own. Connections are only opened once
+     * queries are sent.
+     */
+    public TcpTransport() {
+        this(new EdnsSupport());
+    }
+
+    /** Creates a transport. Connections are only opened once queries are sent.
+     *
+     * @param edns EDNS settings, which may be shared with a UDP transport.
+     */
+    public TcpTransport(EdnsSupport edns) {
+        this.edns = edns;
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, SENDER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "dns-tcp-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        senders.allowCoreThreadTimeOut(true);
+        this.senders = senders;
+    }
+
+    /** Sets the UDP payload size advertised in the OPT record of queries sent from now on. It
+     * has no effect on the responses received over TCP, but tells the server that EDNS is used.
+     * The size is part of the EDNS settings, so it also applies to any transport sharing them.
+     *
+     * @param size Payload size in bytes, between 512 and 65535, or 0 to send queries without
+     *             an OPT record.
+     */
+    public void setUdpPayloadSize(int size) {
+        edns.setUdpPayloadSize(size);
+    }
+
+    /** Sends a query for a node to a server over TCP, reusing a pooled connection to the server
+     * if one is available. This method does not block; the query is sent by a sender thread.
+     *
+     * @param node          Host name and record type to be used for the query.
+     * @param server        Address and port of the server.
+     * @param timeoutMillis Time to wait for the connection and the response, in milliseconds.
+     * @return A future completed with the decoded response, or exceptionally if the connection
+     *         fails, the response does not arrive in time or it cannot be decoded.
+     */
+    public CompletableFuture<DNSResponse> query(DNSNode node, InetSocketAddress server, long timeoutMillis) {
+        CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        submit(node, server, timeoutMillis, edns.payloadSizeFor(server.getAddress()), future);
+        return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Has a sender thread send a query, completing its future exceptionally if it cannot. */
+    private void submit(DNSNode node, InetSocketAddress server, long timeoutMillis, int payloadSize,
+                        CompletableFuture<DNSResponse> future) {
+        try {
+            senders.execute(() -> {
+                try {
+                    acquire(server, timeoutMillis).send(node, timeoutMillis, payloadSize, future);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("transport closed"));
+        }
+    }
+
+    /** Returns the open connection to a server with the fewest outstanding queries, opening a
+     * new one if the pool for the server is not full and every connection is busy.
+     */
+    private Connection acquire(InetSocketAddress server, long timeoutMillis) throws IOException {
+        if (closed) throw new IOException("transport closed");
+        List<Connection> pool = pools.computeIfAbsent(server, key -> new ArrayList<>());
+        synchronized (pool) {
+            pool.removeIf(connection -> !connection.channel.isOpen());
+            Connection best = null;
+            for (Connection connection : pool)
+                if (best == null || connection.pending.size() < best.pending.size())
+                    best = connection;
+            if (best != null && (best.pending.isEmpty() || pool.size() >= MAX_CONNECTIONS_PER_SERVER))
+                return best;
+            Connection connection = new Connection(server, timeoutMillis);
+            pool.add(connection);
+            return connection;
+        }
+    }
+
+    /** Closes all pooled connections. Outstanding queries fail with an IOException. */
+    @Override
+    public void close() {
+        closed = true;
+        senders.shutdownNow();
+        for (List<Connection> pool : pools.values()) {
+            synchronized (pool) {
+                pool.forEach(Connection::close);
+                pool.clear();
+            }
+        }
+    }
+
+    private class Connection {
+        private final InetSocketAddress server;
+        private final SocketChannel channel;
+        private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+        private final ByteBuffer sendBuffer = ByteBuffer.allocate(2 + DNSQueryEncoder.MAX_QUERY_LENGTH);
+
+        Connection(InetSocketAddress server, long timeoutMillis) throws IOException {
+            this.server = server;
+            this.channel = SocketChannel.open();
+            try {
+                channel.socket().connect(server, (int) timeoutMillis);
+                channel.socket().setSoTimeout((int) IDLE_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::read, "dns-tcp-" + server.getAddress().getHostAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Writes a length-prefixed query to the connection and registers its future. */
+        void send(DNSNode node, long timeoutMillis, int payloadSize, CompletableFuture<DNSResponse> future)
+                throws IOException {
+            int queryID;
+            PendingQuery query = new PendingQuery(node, timeoutMillis, payloadSize, future);
+            do {
+                queryID = random.nextInt(UPPER_QUERY_ID_BOUND + 1);
+            } while (pending.putIfAbsent(queryID, query) != null);
+            int id = queryID;
+            future.whenComplete((response, exception) -> pending.remove(id, query));
+
+            synchronized (sendBuffer) {
+                sendBuffer.clear().position(2);
+                try {
+                    DNSQueryEncoder.encode(node, queryID, payloadSize, sendBuffer);
+                } catch (DNSException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+                sendBuffer.putShort(0, (short) (sendBuffer.position() - 2));
+                sendBuffer.flip();
+                query.question = DNSQueryEncoder.questionOf(sendBuffer, 2);
+
+                try {
+                    while (sendBuffer.hasRemaining())
+                        channel.write(sendBuffer);
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+        }
+
+        /** Reads responses until the connection is closed by either side, or stays idle. */
+        private void read() {
+            ByteBuffer length = ByteBuffer.allocate(2);
+            ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+            try {
+                while (true) {
+                    length.clear();
+                    readFully(length, true);
+                    message.clear().limit(length.getShort(0) & 0xffff);
+                    readFully(message, false);
+                    message.flip();
+                    if (message.remaining() < 2) continue;
+
+                    int queryID = message.getShort(0) & 0xffff;
+                    PendingQuery query = pending.get(queryID);
+                    if (query == null || query.question == null)
+                        continue;
+                    if (!DNSResponseDecoder.hasQuestion(message, query.question)
+                            && !DNSResponseDecoder.isQuestionlessError(message))
+                        continue;
+                    DNSResponse response;
+                    try {
+                        response = DNSResponseDecoder.decode(message);
+                    } catch (DNSException e) {
+                        query.future.completeExceptionally(e);
+                        continue;
+                    }
+                    if (query.payloadSize > 0 && edns.checkRejected(server.getAddress(), response)) {
+                        // Send it again without the OPT record; the reader must not block on the send.
+                        pending.remove(queryID, query);
+                        submit(query.node, server, query.timeoutMillis, 0, query.future);
+                    } else {
+                        query.future.complete(response);
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed or idle; outstanding queries fail below.
+            }
+            close();
+        }
+
+        /** Fills a buffer from the connection. Reads go through the socket's stream so that the
+         * idle timeout set on the socket applies; the timeout only closes the connection between
+         * messages, and only if no queries are outstanding.
+         *
+         * @param buffer         Buffer to be filled.
+         * @param startOfMessage Whether the buffer is the start of a message, in which case
+         *                       the connection may be closed if it stays idle.
+         */
+        private void readFully(ByteBuffer buffer, boolean startOfMessage) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count;
+                try {
+                    count = channel.socket().getInputStream().read(buffer.array(), buffer.position(), buffer.remaining());
+                } catch (SocketTimeoutException e) {
+                    if (startOfMessage && pending.isEmpty() && buffer.position() == 0) throw e;
+                    continue;
+                }
+                if (count < 0) throw new EOFException();
+                buffer.position(buffer.position() + count);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to release.
+            }
+            for (PendingQuery query : pending.values())
+                query.future.completeExceptionally(new IOException("connection to " + server + " closed"));
+            pending.clear();
+        }
+    }
+
+    private static class PendingQuery {
+        private final DNSNode node;
+        private final long timeoutMillis;
+        private final int payloadSize;
+        private final CompletableFuture<DNSResponse> future;
+        private volatile byte[] question;
+
+        PendingQuery(DNSNode node, long timeoutMillis, int payloadSize, CompletableFuture<DNSResponse> future) {
+            this.node = node;
+            this.timeoutMillis = timeoutMillis;
+            this.payloadSize = payloadSize;
+            this.future = future;
+        }
+    }
+}
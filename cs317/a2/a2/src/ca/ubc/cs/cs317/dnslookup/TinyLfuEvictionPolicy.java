@@ -0,0 +1,91 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Frequency-aware eviction policy, modelled after W-TinyLFU. New nodes enter a small LRU
+ * window. Nodes leaving the window move to the probation segment of the main area, and are
+ * promoted to the protected segment if they are read again. When the cache needs space, the
+ * node most recently admitted to probation competes with the least recently used probation
+ * node, and the one with the lower estimated frequency is evicted.
+ *
+ * This keeps records that the resolver hits constantly, such as the NS and glue A records of
+ * popular zones, even when a burst of one-off lookups would push them out of a plain LRU cache.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private final FrequencySketch sketch;
+    private final int maximumWindow;
+    private final int maximumProtected;
+
+    private final LinkedHashMap<DNSNode, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<DNSNode, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<DNSNode, Boolean> protectedNodes = new LinkedHashMap<>(16, 0.75f, true);
+    private DNSNode lastAdmitted = null;
+
+    /** Creates a policy sized for a given number of nodes. One percent of the nodes are kept in
+     * the window, and up to eighty percent of the rest in the protected segment.
+     *
+     * @param expectedNodes Approximate number of nodes the cache will hold.
+     */
+    public TinyLfuEvictionPolicy(int expectedNodes) {
+        this.sketch = new FrequencySketch(expectedNodes);
+        this.maximumWindow = Math.max(1, expectedNodes / 100);
+        this.maximumProtected = Math.max(1, (expectedNodes - maximumWindow) * 8 / 10);
+    }
+
+    @Override
+    public synchronized void recordInsertion(DNSNode node) {
+        sketch.increment(node);
+        window.put(node, Boolean.TRUE);
+        if (window.size() > maximumWindow) {
+            DNSNode eldest = removeEldest(window);
+            probation.put(eldest, Boolean.TRUE);
+            lastAdmitted = eldest;
+        }
+    }
+
+    @Override
+    public synchronized void recordAccess(DNSNode node) {
+        sketch.increment(node);
+        if (window.get(node) != null || protectedNodes.get(node) != null)
+            return;
+        if (probation.remove(node) != null) {
+            protectedNodes.put(node, Boolean.TRUE);
+            if (protectedNodes.size() > maximumProtected)
+                probation.put(removeEldest(protectedNodes), Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public synchronized void recordRemoval(DNSNode node) {
+        if (window.remove(node) == null && probation.remove(node) == null)
+            protectedNodes.remove(node);
+        if (node.equals(lastAdmitted))
+            lastAdmitted = null;
+    }
+
+    @Override
+    public synchronized DNSNode selectVictim() {
+        if (!probation.isEmpty()) {
+            DNSNode victim = probation.keySet().iterator().next();
+            DNSNode candidate = lastAdmitted;
+            if (candidate == null || candidate.equals(victim) || !probation.containsKey(candidate))
+                return victim;
+            return sketch.frequency(candidate) > sketch.frequency(victim) ? victim : candidate;
+        }
+        if (!window.isEmpty())
+            return window.keySet().iterator().next();
+        if (!protectedNodes.isEmpty())
+            return protectedNodes.keySet().iterator().next();
+        return null;
+    }
+
+    private static DNSNode removeEldest(Map<DNSNode, Boolean> segment) {
+        Iterator<DNSNode> iterator = segment.keySet().iterator();
+        DNSNode eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+}
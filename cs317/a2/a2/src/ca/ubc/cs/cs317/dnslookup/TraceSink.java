@@ -0,0 +1,237 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Collects trace events from resolutions and writes them from a background thread, so that
+ * tracing never makes a lookup wait for output. Events are placed in a bounded ring buffer; if
+ * the writer falls behind and the buffer is full, new events are dropped and counted rather
+ * than blocking the thread that produced them. Formatting happens on the writer thread too.
+ *
+ * Each event carries the ID of the lookup it belongs to, so that the queries and responses of
+ * concurrent lookups can be told apart. Events are written either as indented text, in the
+ * format of the original verbose trace, or as JSON lines, one object per event.
+ */
+public class TraceSink implements Closeable {
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<Event> buffer;
+    private final Writer out;
+    private final boolean json;
+    private final boolean closeOut;
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed = false;
+
+    private TraceSink(Writer out, boolean json, boolean closeOut, int capacity) {
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.out = out;
+        this.json = json;
+        this.closeOut = closeOut;
+        thread = new Thread(this::run, "dns-trace");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Creates a sink that writes text events to the standard output. */
+    public static TraceSink toConsole() {
+        return new TraceSink(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), false, false,
+                DEFAULT_CAPACITY);
+    }
+
+    /** Creates a sink that appends JSON lines to a file, creating the file if necessary.
+     *
+     * @param file File the events are appended to.
+     * @return The new sink.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static TraceSink toFile(Path file) throws IOException {
+        return new TraceSink(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), true, true, DEFAULT_CAPACITY);
+    }
+
+    /** Records that a query is being sent to a server. */
+    public void query(long lookupId, DNSNode node, InetAddress server) {
+        offer(new Event(lookupId, "query", node, server, null));
+    }
+
+    /** Records a response received from a server. */
+    public void response(long lookupId, DNSNode node, InetAddress server, DNSResponse response) {
+        offer(new Event(lookupId, "response", node, server, response));
+    }
+
+    /** Records any other step of a lookup, such as a TCP fallback or a stale answer. */
+    public void event(long lookupId, String kind, DNSNode node) {
+        offer(new Event(lookupId, kind, node, null, null));
+    }
+
+    /** @return The number of events dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void offer(Event event) {
+        if (closed || !buffer.offer(event))
+            dropped.increment();
+    }
+
+    private void run() {
+        List<Event> batch = new ArrayList<>(DRAIN_BATCH);
+        StringBuilder text = new StringBuilder(1024);
+        while (true) {
+            try {
+                Event first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) break;
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, DRAIN_BATCH - 1);
+                for (Event event : batch) {
+                    text.setLength(0);
+                    if (json)
+                        formatJson(event, text);
+                    else
+                        formatText(event, text);
+                    out.write(text.toString());
+                }
+                batch.clear();
+                if (buffer.isEmpty())
+                    out.flush();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Cannot write trace (" + e.getMessage() + ").");
+                batch.clear();
+            }
+        }
+    }
+
+    private static void formatText(Event event, StringBuilder text) {
+        if (event.response == null) {
+            text.append("\n\n[").append(event.lookupId).append("] ");
+            if (event.server != null)
+                text.append("Query ").append(event.node.getHostName()).append("  ").append(event.node.getType())
+                        .append(" --> ").append(event.server.getHostAddress()).append('\n');
+            else
+                text.append(event.kind).append(' ').append(event.node.getHostName()).append("  ")
+                        .append(event.node.getType()).append('\n');
+            return;
+        }
+        DNSResponse response = event.response;
+        text.append('[').append(event.lookupId).append("] Response ID: ").append(response.getQueryID())
+                .append(" Authoritative = ").append(response.getAuthoritative()).append('\n');
+        appendText(text, "  Answers", response.getAnswerRecords());
+        appendText(text, "  Nameservers", response.getAuthorityRecords());
+        appendText(text, "  Additional Information", response.getAdditionalRecords());
+    }
+
+    private static void appendText(StringBuilder text, String title, List<ResourceRecord> records) {
+        text.append(title).append(" (").append(records.size()).append(")\n");
+        for (ResourceRecord record : records)
+            text.append(String.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(),
+                    record.getType(), record.getTextResult()));
+    }
+
+    private static void formatJson(Event event, StringBuilder json) {
+        json.append("{\"time\":").append(event.time)
+                .append(",\"lookup\":").append(event.lookupId)
+                .append(",\"event\":\"").append(event.kind)
+                .append("\",\"name\":");
+        appendString(json, event.node.getHostName());
+        json.append(",\"type\":\"").append(event.node.getType()).append('"');
+        if (event.server != null)
+            json.append(",\"server\":\"").append(event.server.getHostAddress()).append('"');
+        DNSResponse response = event.response;
+        if (response != null) {
+            json.append(",\"id\":").append(response.getQueryID())
+                    .append(",\"rcode\":").append(response.getRCode())
+                    .append(",\"aa\":").append(response.getAuthoritative())
+                    .append(",\"tc\":").append(response.isTruncated());
+            appendJson(json, "answers", response.getAnswerRecords());
+            appendJson(json, "authority", response.getAuthorityRecords());
+            appendJson(json, "additional", response.getAdditionalRecords());
+        }
+        json.append("}\n");
+    }
+
+    private static void appendJson(StringBuilder json, String field, List<ResourceRecord> records) {
+        json.append(",\"").append(field).append("\":[");
+        for (int i = 0; i < records.size(); i++) {
+            ResourceRecord record = records.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"name\":");
+            appendString(json, record.getHostName());
+            json.append(",\"type\":\"").append(record.getType())
+                    .append("\",\"ttl\":").append(record.getTTL())
+                    .append(",\"data\":");
+            appendString(json, record.getTextResult());
+            json.append('}');
+        }
+        json.append(']');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    /** Stops accepting events, writes the events already buffered and waits for the writer
+     * thread to finish. The output is closed unless it is the standard output.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeOut)
+            out.close();
+        else
+            out.flush();
+    }
+
+    private static class Event {
+        private final long time = DNSClock.currentTimeMillis();
+        private final long lookupId;
+        private final String kind;
+        private final DNSNode node;
+        private final InetAddress server;
+        private final DNSResponse response;
+
+        Event(long lookupId, String kind, DNSNode node, InetAddress server, DNSResponse response) {
+            this.lookupId = lookupId;
+            this.kind = kind;
+            this.node = node;
+            this.server = server;
+            this.response = response;
+        }
+    }
+}
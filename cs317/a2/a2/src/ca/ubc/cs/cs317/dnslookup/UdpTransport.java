@@ -0,0 +1,447 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Asynchronous UDP transport for DNS queries. Queries are sent from a small set of
+ * non-blocking datagram channels, and a background thread waits on a selector for responses.
+ * Any number of queries can be outstanding at once, and each query has its own timeout and
+ * retry count.
+ *
+ * Since responses are cached and may be served to other clients, the transport makes them hard
+ * to forge (RFC 5452). Query IDs are drawn from a secure random generator, and each query is
+ * sent from one of several channels, chosen at random, each bound to its own ephemeral port.
+ * The channels are replaced one at a time, so the set of source ports keeps changing. A
+ * response is only accepted if it arrives on the channel the query was sent from, from the
+ * server it was sent to, with the same query ID, and if it echoes the question of the query.
+ *
+ * Deadlines are kept in a queue ordered by time, so that the transport thread only looks at
+ * the queries whose deadline has passed, however many are outstanding.
+ *
+ * Servers that reject queries carrying an EDNS OPT record, answering FORMERR or NOTIMP without
+ * an OPT record of their own (RFC 6891, section 7), are sent the query again without one, and
+ * are remembered in the EDNS settings shared with the TCP transport, so that later queries to
+ * them leave it out from the start.
+ *
+ * Futures returned by this class are completed on the transport thread, so actions that depend
+ * on them should not block, or should use the asynchronous variants of CompletableFuture.
+ */
+public class UdpTransport implements Closeable {
+
+    private static final int UPPER_QUERY_ID_BOUND = 65535;
+    // Large enough for any datagram, so a response is never cut short whatever EDNS payload
+    // size is advertised
+    private static final int RECEIVE_BUFFER_LENGTH = 65535;
+    // Room in the socket for a burst of full-size EDNS responses before the transport thread
+    // drains them
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 1 << 20;
+    private static final long SELECT_TIMEOUT_MILLIS = 10;
+    private static final int CHANNEL_COUNT = 8;
+    // Each channel is replaced after this long, one channel at a time
+    private static final long CHANNEL_LIFETIME_MILLIS = 60000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final AtomicReferenceArray<Endpoint> endpoints = new AtomicReferenceArray<>(CHANNEL_COUNT);
+    // Replaced channels, closed once their queries are done; only used by the transport thread
+    private final List<Endpoint> retired = new ArrayList<>();
+    private final Map<PendingKey, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Timeout> timeouts = new PriorityBlockingQueue<>();
+    private final EdnsSupport edns;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<ByteBuffer> sendBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DNSQueryEncoder.MAX_QUERY_LENGTH));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_LENGTH);
+    private volatile RttEstimator rttEstimator = null;
+    private volatile ResolverMetrics metrics = null;
+    private volatile boolean closed = false;
+    private long nextRotation;
+    private int nextRotated = 0;
+
+    /** Opens the datagram channels on ephemeral ports and starts the transport thread, with
+     * EDNS settings of its own.
+     *
+     * @throws IOException If a channel or the selector cannot be opened.
+     */
+    public UdpTransport() throws IOException {
+        this(new EdnsSupport());
+    }
+
+    /** Opens the datagram channels on ephemeral ports and starts the transport thread.
+     *
+     * @param edns EDNS settings, which may be shared with a TCP transport.
+     * @throws IOException If a channel or the selector cannot be opened.
+     */
+    public UdpTransport(EdnsSupport edns) throws IOException {
+        this.edns = edns;
+        selector = Selector.open();
+        try {
+            for (int i = 0; i < CHANNEL_COUNT; i++)
+                endpoints.set(i, openEndpoint());
+        } catch (IOException e) {
+            closeEndpoints();
+            selector.close();
+            throw e;
+        }
+        nextRotation = System.currentTimeMillis() + CHANNEL_LIFETIME_MILLIS / CHANNEL_COUNT;
+
+        thread = new Thread(this::run, "dns-udp-transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Opens a datagram channel on an ephemeral port, and registers it with the selector. */
+    private Endpoint openEndpoint() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(null);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER_SIZE);
+            channel.configureBlocking(false);
+            Endpoint endpoint = new Endpoint(channel);
+            channel.register(selector, SelectionKey.OP_READ, endpoint);
+            return endpoint;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Sets the estimator that is updated with the RTT of each response, and notified of each
+     * query that times out. Only queries answered on their first attempt are measured.
+     *
+     * @param estimator RTT estimator to be updated, or null for none.
+     */
+    public void setRttEstimator(RttEstimator estimator) {
+        this.rttEstimator = estimator;
+    }
+
+    /** Sets the metrics updated with each query sent, each response and each timeout. Unlike
+     * the RTT estimator, metrics are updated with the RTT of every attempt that is answered.
+     *
+     * @param metrics Metrics to be updated, or null for none.
+     */
+    public void setMetrics(ResolverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Sets the UDP payload size advertised in the OPT record of queries sent from now on. The
+     * default is given by the system property dnslookup.ednsPayloadSize (1232 bytes). The size
+     * is part of the EDNS settings, so it also applies to any transport sharing them.
+     *
+     * @param size Payload size in bytes, between 512 and 65535, or 0 to send queries without
+     *             an OPT record.
+     */
+    public void setUdpPayloadSize(int size) {
+        edns.setUdpPayloadSize(size);
+    }
+
+    /** @return The UDP payload size advertised in queries, or 0 if EDNS is disabled. */
+    public int getUdpPayloadSize() {
+        return edns.getUdpPayloadSize();
+    }
+
+    /** Sends a query for a node to a server. If no response arrives within the timeout, the
+     * query is sent again with the same ID, up to the specified number of retries.
+     *
+     * @param node          Host name and record type to be used for the query.
+     * @param server        Address and port of the server.
+     * @param timeoutMillis Time to wait for a response to each attempt, in milliseconds.
+     * @param retries       Number of times the query is resent after a timeout.
+     * @return A future completed with the decoded response, or exceptionally with a
+     *         SocketTimeoutException if no response arrives, or a DNSException if the host name
+     *         is invalid or the response cannot be decoded.
+     */
+    public CompletableFuture<DNSResponse> query(DNSNode node, InetSocketAddress server, long timeoutMillis, int retries) {
+        PendingQuery query = new PendingQuery(node, server, timeoutMillis, retries,
+                edns.payloadSizeFor(server.getAddress()));
+        if (closed) {
+            query.future.completeExceptionally(new IOException("transport closed"));
+            return query.future;
+        }
+        Endpoint endpoint = endpoints.get(random.nextInt(CHANNEL_COUNT));
+        endpoint.outstanding.incrementAndGet();
+        query.endpoint = endpoint;
+        PendingKey key;
+        do {
+            key = new PendingKey(random.nextInt(UPPER_QUERY_ID_BOUND + 1), server);
+        } while (pending.putIfAbsent(key, query) != null);
+        query.key = key;
+        query.future.whenComplete((response, exception) -> {
+            pending.remove(query.key, query);
+            endpoint.outstanding.decrementAndGet();
+        });
+
+        transmit(query);
+        return query.future;
+    }
+
+    /** Encodes a query and sends it to its server, and sets the deadline for a response.
+     *
+     * @param query Query to be sent.
+     */
+    private void transmit(PendingQuery query) {
+        ByteBuffer buffer = sendBuffer.get();
+        buffer.clear();
+        try {
+            DNSQueryEncoder.encode(query.node, query.key.queryID, query.payloadSize, buffer);
+        } catch (DNSException e) {
+            query.future.completeExceptionally(e);
+            return;
+        }
+        buffer.flip();
+        if (query.question == null)
+            query.question = DNSQueryEncoder.questionOf(buffer, 0);
+
+        query.attempts++;
+        query.sentAt = System.currentTimeMillis();
+        query.sentAtNanos = System.nanoTime();
+        timeouts.add(new Timeout(query.sentAt + query.timeoutMillis, query, query.attempts));
+        ResolverMetrics resolverMetrics = metrics;
+        if (resolverMetrics != null)
+            resolverMetrics.recordQuerySent(query.attempts > 1);
+        try {
+            // A full send buffer drops the datagram; the retry timer covers it like a lost packet.
+            query.endpoint.channel.send(buffer, query.server);
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                for (SelectionKey key : selector.selectedKeys())
+                    receiveAll((Endpoint) key.attachment());
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (closed) break;
+            }
+            long now = System.currentTimeMillis();
+            expireTimedOut(now);
+            if (now >= nextRotation)
+                rotateEndpoint(now);
+        }
+    }
+
+    /** Reads every datagram waiting on a channel, and completes the query each one answers.
+     * Datagrams that do not match an outstanding query sent from that channel are ignored.
+     */
+    private void receiveAll(Endpoint endpoint) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = endpoint.channel.receive(receiveBuffer);
+            if (source == null) return;
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < 2) continue;
+
+            int queryID = receiveBuffer.getShort(0) & 0xffff;
+            PendingQuery query = pending.get(new PendingKey(queryID, (InetSocketAddress) source));
+            if (query == null || query.endpoint != endpoint) continue;
+            if (!DNSResponseDecoder.hasQuestion(receiveBuffer, query.question)
+                    && !DNSResponseDecoder.isQuestionlessError(receiveBuffer))
+                continue;
+            RttEstimator estimator = rttEstimator;
+            if (estimator != null && query.attempts == 1)
+                estimator.recordRtt(query.server.getAddress(), System.currentTimeMillis() - query.sentAt);
+            ResolverMetrics resolverMetrics = metrics;
+            if (resolverMetrics != null)
+                resolverMetrics.recordRtt(query.server.getAddress(), (System.nanoTime() - query.sentAtNanos) / 1000);
+            DNSResponse response;
+            try {
+                response = DNSResponseDecoder.decode(receiveBuffer);
+            } catch (DNSException e) {
+                query.future.completeExceptionally(e);
+                continue;
+            }
+            if (query.payloadSize > 0 && edns.checkRejected(query.server.getAddress(), response)) {
+                query.payloadSize = 0;
+                transmit(query);
+            } else {
+                query.future.complete(response);
+            }
+        }
+    }
+
+    /** Resends or fails every query whose deadline has passed. Deadlines of queries that were
+     * answered, or sent again since, are dropped as they come up.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    private void expireTimedOut(long now) {
+        while (true) {
+            Timeout timeout = timeouts.poll();
+            if (timeout == null) return;
+            if (timeout.deadline > now) {
+                timeouts.add(timeout);
+                return;
+            }
+            PendingQuery query = timeout.query;
+            if (query.future.isDone() || query.attempts != timeout.attempt) continue;
+            RttEstimator estimator = rttEstimator;
+            if (estimator != null)
+                estimator.recordTimeout(query.server.getAddress());
+            ResolverMetrics resolverMetrics = metrics;
+            if (resolverMetrics != null)
+                resolverMetrics.recordTimeout(query.server.getAddress());
+            if (query.retriesLeft-- > 0)
+                transmit(query);
+            else
+                query.future.completeExceptionally(new SocketTimeoutException(
+                        "no response from " + query.server.getAddress().getHostAddress() + " for " + query.node));
+        }
+    }
+
+    /** Replaces the oldest channel with a new one on another ephemeral port. New queries are
+     * sent from the new channel, while the old one is kept open until the queries already sent
+     * from it are done. Channels replaced earlier are closed once they have no such queries.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    private void rotateEndpoint(long now) {
+        nextRotation = now + CHANNEL_LIFETIME_MILLIS / CHANNEL_COUNT;
+        Iterator<Endpoint> iterator = retired.iterator();
+        while (iterator.hasNext()) {
+            Endpoint endpoint = iterator.next();
+            if (endpoint.outstanding.get() > 0) continue;
+            endpoint.close();
+            iterator.remove();
+        }
+        try {
+            retired.add(endpoints.getAndSet(nextRotated, openEndpoint()));
+            nextRotated = (nextRotated + 1) % CHANNEL_COUNT;
+        } catch (IOException e) {
+            // Keep the current channel, and try again at the next rotation.
+        }
+    }
+
+    private void closeEndpoints() {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            Endpoint endpoint = endpoints.get(i);
+            if (endpoint != null)
+                endpoint.close();
+        }
+        retired.forEach(Endpoint::close);
+        retired.clear();
+    }
+
+    /** Stops the transport thread and closes the channels. Outstanding queries fail with an
+     * IOException.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Iterator<PendingQuery> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().future.completeExceptionally(new IOException("transport closed"));
+            iterator.remove();
+        }
+        closeEndpoints();
+        selector.close();
+    }
+
+    private static class Endpoint {
+        private final DatagramChannel channel;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Endpoint(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to release.
+            }
+        }
+    }
+
+    private static class Timeout implements Comparable<Timeout> {
+        private final long deadline;
+        private final PendingQuery query;
+        private final int attempt;
+
+        Timeout(long deadline, PendingQuery query, int attempt) {
+            this.deadline = deadline;
+            this.query = query;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public int compareTo(Timeout o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private static class PendingKey {
+        private final int queryID;
+        private final InetSocketAddress server;
+
+        PendingKey(int queryID, InetSocketAddress server) {
+            this.queryID = queryID;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PendingKey that = (PendingKey) o;
+            return queryID == that.queryID && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queryID, server);
+        }
+    }
+
+    private static class PendingQuery {
+        private final DNSNode node;
+        private final InetSocketAddress server;
+        private final long timeoutMillis;
+        private final CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        private PendingKey key;
+        private Endpoint endpoint;
+        private volatile byte[] question;
+        private volatile int retriesLeft;
+        private volatile int attempts = 0;
+        private volatile long sentAt;
+        private volatile long sentAtNanos;
+        private volatile int payloadSize;
+
+        PendingQuery(DNSNode node, InetSocketAddress server, long timeoutMillis, int retries, int payloadSize) {
+            this.node = node;
+            this.server = server;
+            this.timeoutMillis = timeoutMillis;
+            this.retriesLeft = retries;
+            this.payloadSize = payloadSize;
+        }
+    }
+}